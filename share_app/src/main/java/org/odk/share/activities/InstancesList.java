@@ -1,11 +1,7 @@
 package org.odk.share.activities;
 
 import android.content.Intent;
-import android.database.Cursor;
 import android.os.Bundle;
-import android.support.annotation.NonNull;
-import android.support.v4.app.LoaderManager;
-import android.support.v4.content.Loader;
 import android.support.v7.widget.LinearLayoutManager;
 import android.support.v7.widget.RecyclerView;
 import android.support.v7.widget.Toolbar;
@@ -15,32 +11,40 @@ import android.widget.CheckBox;
 
 import org.odk.share.R;
 import org.odk.share.adapters.InstanceAdapter;
+import org.odk.share.adapters.PagedList;
 import org.odk.share.dao.InstancesDao;
-import org.odk.share.provider.InstanceProviderAPI;
+import org.odk.share.dto.Instance;
+import org.odk.share.rx.schedulers.BaseSchedulerProvider;
 import org.odk.share.utilities.ArrayUtils;
 
 import java.util.LinkedHashSet;
 
+import javax.inject.Inject;
+
 import butterknife.BindView;
 import butterknife.ButterKnife;
 import butterknife.OnClick;
+import io.reactivex.Single;
+import io.reactivex.disposables.CompositeDisposable;
+import timber.log.Timber;
 
-public class InstancesList extends InjectableActivity implements LoaderManager.LoaderCallbacks<Cursor> {
+public class InstancesList extends InjectableActivity implements PagedList.Listener {
 
     @BindView(R.id.recyclerview) RecyclerView recyclerView;
     @BindView(R.id.toolbar) Toolbar toolbar;
     @BindView(R.id.send_button) Button sendButton;
     @BindView(R.id.toggle_button) Button toggleButton;
 
-    protected static final String SORT_BY_NAME_ASC
-            = InstanceProviderAPI.InstanceColumns.DISPLAY_NAME + " COLLATE NOCASE ASC";
-
     private static final String SELECTED_INSTANCES = "selectedInstances";
     public static final String INSTANCE_IDS = "instance_ids";
 
-    private static final int INSTANCE_LOADER = 1;
+    @Inject
+    BaseSchedulerProvider schedulerProvider;
+
+    private PagedList<Instance> instances;
     private InstanceAdapter instanceAdapter;
     private LinkedHashSet<Long> selectedInstances;
+    private final CompositeDisposable compositeDisposable = new CompositeDisposable();
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -56,14 +60,36 @@ public class InstancesList extends InjectableActivity implements LoaderManager.L
         LinearLayoutManager llm = new LinearLayoutManager(this);
         llm.setOrientation(LinearLayoutManager.VERTICAL);
         recyclerView.setLayoutManager(llm);
+
+        instances = new PagedList<>(new InstancesDao().getSavedInstancesByName(),
+                schedulerProvider, this);
+        instanceAdapter = new InstanceAdapter(this, instances, this::onListItemClick,
+                selectedInstances);
+        recyclerView.setAdapter(instanceAdapter);
     }
 
+    /**
+     * Reads the pages held again rather than starting over, so coming back to the list
+     * keeps its scroll position.
+     */
     @Override
     protected void onResume() {
-        getSupportLoaderManager().initLoader(INSTANCE_LOADER, null, this);
+        instances.load();
         super.onResume();
     }
 
+    @Override
+    protected void onPause() {
+        instances.close();
+        super.onPause();
+    }
+
+    @Override
+    protected void onDestroy() {
+        compositeDisposable.dispose();
+        super.onDestroy();
+    }
+
     @Override
     protected void onSaveInstanceState(Bundle outState) {
         super.onSaveInstanceState(outState);
@@ -73,42 +99,37 @@ public class InstancesList extends InjectableActivity implements LoaderManager.L
     @Override
     protected void onRestoreInstanceState(Bundle state) {
         super.onRestoreInstanceState(state);
-        selectedInstances = (LinkedHashSet<Long>) state.getSerializable(SELECTED_INSTANCES);
+        // the adapter shares the set, so it is filled rather than replaced
+        selectedInstances.addAll(
+                (LinkedHashSet<Long>) state.getSerializable(SELECTED_INSTANCES));
     }
 
-    @NonNull
     @Override
-    public Loader<Cursor> onCreateLoader(int id, Bundle args) {
-        return new InstancesDao().getSavedInstancesCursorLoader(SORT_BY_NAME_ASC);
-    }
-
-    @Override
-    public void onLoadFinished(@NonNull Loader<Cursor> loader, Cursor cursor) {
-        cursor.moveToFirst();
-        instanceAdapter = new InstanceAdapter(this, cursor, this::onListItemClick, selectedInstances);
-        recyclerView.setAdapter(instanceAdapter);
+    public void onChanged() {
+        instanceAdapter.notifyDataSetChanged();
         if (instanceAdapter.getItemCount() > 0) {
-           toggleButton.setText(getString(R.string.select_all));
-           toggleButton.setEnabled(true);
+            toggleButtonLabel();
+            toggleButton.setEnabled(true);
         } else {
             toggleButton.setEnabled(false);
         }
     }
 
-
     @Override
-    public void onLoaderReset(@NonNull Loader loader) {
-
+    public void onRowsLoaded(int start, int count) {
+        instanceAdapter.notifyItemRangeChanged(start, count);
     }
 
     private void onListItemClick(View view, int position) {
-        Cursor cursor = instanceAdapter.getCursor();
-        cursor.moveToPosition(position);
+        Instance instance = instanceAdapter.getItem(position);
+        if (instance == null) {
+            return;
+        }
 
         CheckBox checkBox = view.findViewById(R.id.checkbox);
         checkBox.setChecked(!checkBox.isChecked());
 
-        long id = cursor.getLong(cursor.getColumnIndex(InstanceProviderAPI.InstanceColumns._ID));
+        long id = instance.getId();
 
         if (selectedInstances.contains(id)) {
             selectedInstances.remove(id);
@@ -134,19 +155,25 @@ public class InstancesList extends InjectableActivity implements LoaderManager.L
     @OnClick(R.id.toggle_button)
     public void toggle() {
         boolean newState = instanceAdapter.getItemCount() > selectedInstances.size();
-        sendButton.setEnabled(newState);
 
         if (newState) {
-            Cursor cursor = instanceAdapter.getCursor();
-            if (cursor.moveToFirst()) {
-                do {
-                    selectedInstances.add(cursor.getLong(cursor.getColumnIndex(InstanceProviderAPI.InstanceColumns._ID)));
-                } while (cursor.moveToNext());
-            }
+            // most rows are not read, so the ids are read on their own
+            InstancesDao instancesDao = new InstancesDao();
+            compositeDisposable.add(Single.fromCallable(instancesDao::getSavedInstanceIds)
+                    .subscribeOn(schedulerProvider.io())
+                    .observeOn(schedulerProvider.androidThread())
+                    .subscribe(ids -> {
+                        selectedInstances.addAll(ids);
+                        onSelectionChanged();
+                    }, Timber::e));
         } else {
             selectedInstances.clear();
+            onSelectionChanged();
         }
+    }
 
+    private void onSelectionChanged() {
+        sendButton.setEnabled(selectedInstances.size() > 0);
         instanceAdapter.notifyDataSetChanged();
         toggleButtonLabel();
     }
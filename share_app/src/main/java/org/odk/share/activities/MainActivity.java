@@ -1,11 +1,7 @@
 package org.odk.share.activities;
 
 import android.content.Intent;
-import android.database.Cursor;
 import android.os.Bundle;
-import android.support.annotation.NonNull;
-import android.support.v4.app.LoaderManager;
-import android.support.v4.content.Loader;
 import android.support.v7.widget.LinearLayoutManager;
 import android.support.v7.widget.RecyclerView;
 import android.support.v7.widget.Toolbar;
@@ -16,25 +12,25 @@ import android.widget.Button;
 
 import org.odk.share.R;
 import org.odk.share.adapters.FormsAdapter;
+import org.odk.share.adapters.PagedList;
 import org.odk.share.application.Share;
 import org.odk.share.dao.FormsDao;
+import org.odk.share.dto.Form;
 import org.odk.share.preferences.SettingsPreference;
-import org.odk.share.provider.FormsProviderAPI;
+import org.odk.share.rx.schedulers.BaseSchedulerProvider;
+
+import javax.inject.Inject;
 
 import butterknife.BindView;
 import butterknife.ButterKnife;
 import butterknife.OnClick;
 
-public class MainActivity extends InjectableActivity implements LoaderManager.LoaderCallbacks<Cursor> {
+public class MainActivity extends InjectableActivity implements PagedList.Listener {
 
-    protected static final String SORT_BY_NAME_ASC
-            = FormsProviderAPI.FormsColumns.DISPLAY_NAME + " COLLATE NOCASE ASC";
     public static final String FORM_VERSION = "form_version";
     public static final String FORM_ID = "form_id";
     public static final String FORM_DISPLAY_NAME = "form_display_name";
 
-    private static final int FORM_LOADER = 2;
-
     @BindView(R.id.toolbar)
     Toolbar toolbar;
     @BindView(R.id.bSendForms)
@@ -44,6 +40,10 @@ public class MainActivity extends InjectableActivity implements LoaderManager.Lo
     @BindView(R.id.recyclerview)
     RecyclerView recyclerView;
 
+    @Inject
+    BaseSchedulerProvider schedulerProvider;
+
+    private PagedList<Form> forms;
     private FormsAdapter formAdapter;
 
     @Override
@@ -66,11 +66,18 @@ public class MainActivity extends InjectableActivity implements LoaderManager.Lo
     protected void onResume() {
         super.onResume();
         setupAdapter();
-        getSupportLoaderManager().initLoader(FORM_LOADER, null, this);
+        forms.load();
+    }
+
+    @Override
+    protected void onPause() {
+        forms.close();
+        super.onPause();
     }
 
     private void setupAdapter() {
-        formAdapter = new FormsAdapter(this, null, this::onItemClick);
+        forms = new PagedList<>(new FormsDao().getFormsByName(), schedulerProvider, this);
+        formAdapter = new FormsAdapter(this, forms, this::onItemClick);
         recyclerView.setAdapter(formAdapter);
     }
 
@@ -102,29 +109,25 @@ public class MainActivity extends InjectableActivity implements LoaderManager.Lo
         return super.onOptionsItemSelected(item);
     }
 
-    @NonNull
     @Override
-    public Loader<Cursor> onCreateLoader(int id, Bundle args) {
-        return new FormsDao().getFormsCursorLoader(SORT_BY_NAME_ASC);
+    public void onChanged() {
+        formAdapter.notifyDataSetChanged();
     }
 
     @Override
-    public void onLoadFinished(@NonNull Loader<Cursor> loader, Cursor cursor) {
-        formAdapter.changeCursor(cursor);
-    }
-
-    @Override
-    public void onLoaderReset(@NonNull Loader loader) {
-        formAdapter.swapCursor(null);
+    public void onRowsLoaded(int start, int count) {
+        formAdapter.notifyItemRangeChanged(start, count);
     }
 
     private void onItemClick(View view, int position) {
-        Cursor cursor = formAdapter.getCursor();
-        cursor.moveToPosition(position);
+        Form form = formAdapter.getItem(position);
+        if (form == null) {
+            return;
+        }
         Intent intent  = new Intent(this, InstanceManagerTabs.class);
-        intent.putExtra(FORM_VERSION, cursor.getString(cursor.getColumnIndex(FormsProviderAPI.FormsColumns.JR_VERSION)));
-        intent.putExtra(FORM_ID, cursor.getString(cursor.getColumnIndex(FormsProviderAPI.FormsColumns.JR_FORM_ID)));
-        intent.putExtra(FORM_DISPLAY_NAME, cursor.getString(cursor.getColumnIndex(FormsProviderAPI.FormsColumns.DISPLAY_NAME)));
+        intent.putExtra(FORM_VERSION, form.getJrVersion());
+        intent.putExtra(FORM_ID, form.getJrFormId());
+        intent.putExtra(FORM_DISPLAY_NAME, form.getDisplayName());
         startActivity(intent);
     }
 }
\ No newline at end of file
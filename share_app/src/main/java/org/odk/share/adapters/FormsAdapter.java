@@ -1,8 +1,8 @@
 package org.odk.share.adapters;
 
 import android.content.Context;
-import android.database.Cursor;
 import android.support.annotation.NonNull;
+import android.support.v7.widget.RecyclerView;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -10,25 +10,46 @@ import android.widget.TextView;
 
 import org.odk.share.R;
 import org.odk.share.adapters.basecursoradapter.BaseCursorViewHolder;
-import org.odk.share.adapters.basecursoradapter.CursorRecyclerViewAdapter;
 import org.odk.share.adapters.basecursoradapter.OnItemClickListener;
-import org.odk.share.provider.FormsProviderAPI;
+import org.odk.share.dto.Form;
 
 import butterknife.BindView;
 import butterknife.ButterKnife;
 
-public class FormsAdapter extends CursorRecyclerViewAdapter<FormsAdapter.FormHolder> {
+public class FormsAdapter extends RecyclerView.Adapter<FormsAdapter.FormHolder> {
 
-    public FormsAdapter(Context context, Cursor cursor, OnItemClickListener listener) {
-        super(context, cursor, listener);
+    private final Context context;
+    private final PagedList<Form> forms;
+    private final OnItemClickListener listener;
+
+    public FormsAdapter(Context context, PagedList<Form> forms, OnItemClickListener listener) {
+        this.context = context;
+        this.forms = forms;
+        this.listener = listener;
+    }
+
+    @Override
+    public void onBindViewHolder(@NonNull FormHolder viewHolder, int position) {
+        viewHolder.setListener(listener);
+        Form form = forms.get(position);
+        if (form == null) {
+            // placeholder until its page is read
+            viewHolder.clear();
+            return;
+        }
+        viewHolder.bind(form.getDisplayName(), form.getJrVersion(), form.getJrFormId());
     }
 
     @Override
-    public void onBindViewHolder(FormHolder viewHolder, Cursor cursor) {
-        String title = cursor.getString(cursor.getColumnIndex(FormsProviderAPI.FormsColumns.DISPLAY_NAME));
-        String version = cursor.getString(cursor.getColumnIndex(FormsProviderAPI.FormsColumns.JR_VERSION));
-        String id = cursor.getString(cursor.getColumnIndex(FormsProviderAPI.FormsColumns.JR_FORM_ID));
-        viewHolder.bind(title, version, id);
+    public int getItemCount() {
+        return forms.size();
+    }
+
+    /**
+     * The form at the position, null if its page has not been read yet.
+     */
+    public Form getItem(int position) {
+        return forms.get(position);
     }
 
     @NonNull
@@ -62,5 +83,10 @@ public class FormsAdapter extends CursorRecyclerViewAdapter<FormsAdapter.FormHol
             tvSubtitle.setText(sb);
 
         }
+
+        void clear() {
+            tvTitle.setText(null);
+            tvSubtitle.setText(null);
+        }
     }
 }
@@ -1,7 +1,6 @@
 package org.odk.share.adapters;
 
 import android.content.Context;
-import android.database.Cursor;
 import android.support.annotation.NonNull;
 import android.support.v7.widget.RecyclerView;
 import android.view.LayoutInflater;
@@ -11,7 +10,7 @@ import android.widget.CheckBox;
 import android.widget.TextView;
 
 import org.odk.share.R;
-import org.odk.share.provider.InstanceProviderAPI;
+import org.odk.share.dto.Instance;
 
 import java.util.LinkedHashSet;
 
@@ -24,15 +23,15 @@ import butterknife.ButterKnife;
 
 public class InstanceAdapter extends RecyclerView.Adapter<InstanceAdapter.InstanceHolder> {
 
-    private Cursor cursor;
+    private final PagedList<Instance> instances;
     private Context context;
     private final OnItemClickListener listener;
     private LinkedHashSet<Long> selectedInstances;
 
-    public InstanceAdapter(Context context, Cursor cursor, OnItemClickListener listener,
-                           LinkedHashSet<Long> selectedInstances) {
+    public InstanceAdapter(Context context, PagedList<Instance> instances,
+                           OnItemClickListener listener, LinkedHashSet<Long> selectedInstances) {
         this.context = context;
-        this.cursor = cursor;
+        this.instances = instances;
         this.listener = listener;
         this.selectedInstances = selectedInstances;
     }
@@ -46,28 +45,35 @@ public class InstanceAdapter extends RecyclerView.Adapter<InstanceAdapter.Instan
 
     @Override
     public void onBindViewHolder(@NonNull InstanceHolder holder, int position) {
-        cursor.moveToPosition(holder.getAdapterPosition());
+        Instance instance = instances.get(position);
         holder.itemView.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
                 listener.onItemClick(v, holder.getAdapterPosition());
             }
         });
-        holder.title.setText(cursor.getString(cursor.getColumnIndex(InstanceProviderAPI.InstanceColumns.DISPLAY_NAME)));
-        holder.subtitle.setText(cursor.getString(cursor.getColumnIndex(InstanceProviderAPI.InstanceColumns.DISPLAY_SUBTEXT)));
-        long id = cursor.getLong(cursor.getColumnIndex(InstanceProviderAPI.InstanceColumns._ID));
-        holder.checkBox.setChecked(selectedInstances.contains(id));
+        if (instance == null) {
+            // placeholder until its page is read
+            holder.title.setText(null);
+            holder.subtitle.setText(null);
+            holder.checkBox.setChecked(false);
+            return;
+        }
+        holder.title.setText(instance.getDisplayName());
+        holder.subtitle.setText(instance.getDisplaySubtext());
+        holder.checkBox.setChecked(selectedInstances.contains(instance.getId()));
     }
 
     @Override
     public int getItemCount() {
-        return cursor.getCount();
+        return instances.size();
     }
 
-
-
-    public Cursor getCursor() {
-        return cursor;
+    /**
+     * The instance at the position, null if its page has not been read yet.
+     */
+    public Instance getItem(int position) {
+        return instances.peek(position);
     }
 
     public interface OnItemClickListener {
@@ -0,0 +1,220 @@
+package org.odk.share.adapters;
+
+import android.database.ContentObserver;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.SparseArray;
+
+import org.odk.share.application.Share;
+import org.odk.share.dao.PageSource;
+import org.odk.share.rx.schedulers.BaseSchedulerProvider;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import io.reactivex.Single;
+import io.reactivex.disposables.CompositeDisposable;
+import timber.log.Timber;
+
+/**
+ * A list read from a {@link PageSource} in pages of {@link #PAGE_SIZE} rows. The size of the
+ * whole list is known up front, so the rows not read yet are bound as empty placeholders and
+ * the scroll bar stays true. Binding a row within {@link #PREFETCH_DISTANCE} of the end of
+ * its page reads the neighbouring page ahead of the scroll. At most {@link #MAX_PAGES} pages
+ * are held, the ones furthest from the last row bound are dropped and read again when they
+ * come back into view.
+ * <p>
+ * Pages are read on a background thread and everything else happens on the main thread.
+ * The list is read again when the provider reports a change.
+ */
+public class PagedList<T> {
+
+    public static final int PAGE_SIZE = 50;
+    public static final int PREFETCH_DISTANCE = 20;
+    private static final int MAX_PAGES = 6;
+
+    private final PageSource<T> source;
+    private final BaseSchedulerProvider schedulerProvider;
+    private final Listener listener;
+    private final CompositeDisposable compositeDisposable = new CompositeDisposable();
+    private final SparseArray<List<T>> pages = new SparseArray<>();
+    // the last key of every page read since the last refresh, including dropped pages
+    private final SparseArray<PageSource.Key> keys = new SparseArray<>();
+    private final List<Integer> loading = new ArrayList<>();
+    private final ContentObserver observer = new ContentObserver(
+            new Handler(Looper.getMainLooper())) {
+        @Override
+        public void onChange(boolean selfChange) {
+            refresh();
+        }
+    };
+
+    private int size;
+    private int lastPage;
+    // results of reads started before the latest refresh are dropped
+    private int generation;
+
+    public PagedList(PageSource<T> source, BaseSchedulerProvider schedulerProvider,
+                     Listener listener) {
+        this.source = source;
+        this.schedulerProvider = schedulerProvider;
+        this.listener = listener;
+    }
+
+    /**
+     * Counts the rows and reads the first page, then keeps the list up to date until
+     * {@link #close()}.
+     */
+    public void load() {
+        Share.getInstance().getContentResolver()
+                .registerContentObserver(source.getUri(), true, observer);
+        refresh();
+    }
+
+    public void close() {
+        Share.getInstance().getContentResolver().unregisterContentObserver(observer);
+        compositeDisposable.clear();
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * The row at the position, or null while its page is being read. Meant for binding: the
+     * position counts as in view, so its page and the neighbouring one are read if needed.
+     */
+    public T get(int position) {
+        int page = position / PAGE_SIZE;
+        int offset = position % PAGE_SIZE;
+        lastPage = page;
+
+        request(page);
+        if (offset >= PAGE_SIZE - PREFETCH_DISTANCE) {
+            request(page + 1);
+        } else if (offset < PREFETCH_DISTANCE) {
+            request(page - 1);
+        }
+        return peek(position);
+    }
+
+    /**
+     * The row at the position if its page is held, null otherwise. Reads nothing and leaves
+     * what is held alone, for lookups outside binding such as clicks.
+     */
+    public T peek(int position) {
+        List<T> rows = position < 0 ? null : pages.get(position / PAGE_SIZE);
+        int offset = position % PAGE_SIZE;
+        return rows == null || offset >= rows.size() ? null : rows.get(offset);
+    }
+
+    private void request(int page) {
+        if (page < 0 || page * PAGE_SIZE >= size || pages.get(page) != null
+                || loading.contains(page)) {
+            return;
+        }
+
+        loading.add(page);
+        int started = generation;
+        PageSource.Key after = page == 0 ? null : keys.get(page - 1);
+        compositeDisposable.add(Single.fromCallable(() -> after != null || page == 0
+                ? source.loadAfter(after, PAGE_SIZE)
+                : source.loadAt(page * PAGE_SIZE, PAGE_SIZE))
+                .subscribeOn(schedulerProvider.io())
+                .observeOn(schedulerProvider.androidThread())
+                .subscribe(result -> {
+                    if (started != generation) {
+                        return;
+                    }
+                    loading.remove(Integer.valueOf(page));
+                    put(page, result);
+                    listener.onRowsLoaded(page * PAGE_SIZE, result.getRows().size());
+                }, e -> {
+                    // asked for again the next time one of its rows is bound
+                    loading.remove(Integer.valueOf(page));
+                    Timber.e(e);
+                }));
+    }
+
+    /**
+     * Counts the rows again and reads the pages held, so what is on screen is replaced in
+     * one change rather than flashing placeholders.
+     */
+    private void refresh() {
+        int started = ++generation;
+        loading.clear();
+        List<Integer> held = new ArrayList<>();
+        for (int i = 0; i < pages.size(); i++) {
+            held.add(pages.keyAt(i));
+        }
+        if (held.isEmpty()) {
+            held.add(0);
+        }
+
+        compositeDisposable.add(Single.fromCallable(() -> read(held))
+                .subscribeOn(schedulerProvider.io())
+                .observeOn(schedulerProvider.androidThread())
+                .subscribe(result -> {
+                    if (started != generation) {
+                        return;
+                    }
+                    size = result.size;
+                    pages.clear();
+                    keys.clear();
+                    for (int i = 0; i < held.size(); i++) {
+                        put(held.get(i), result.pages.get(i));
+                    }
+                    listener.onChanged();
+                }, Timber::e));
+    }
+
+    private Snapshot<T> read(List<Integer> held) {
+        Snapshot<T> snapshot = new Snapshot<>(source.count());
+        PageSource.Page<T> previous = null;
+        int previousIndex = -1;
+        for (int page : held) {
+            PageSource.Page<T> result = previous != null && previousIndex == page - 1
+                    ? source.loadAfter(previous.getLast(), PAGE_SIZE)
+                    : source.loadAt(page * PAGE_SIZE, PAGE_SIZE);
+            snapshot.pages.add(result);
+            previous = result;
+            previousIndex = page;
+        }
+        return snapshot;
+    }
+
+    private void put(int page, PageSource.Page<T> result) {
+        pages.put(page, result.getRows());
+        if (result.getLast() != null) {
+            keys.put(page, result.getLast());
+        }
+
+        while (pages.size() > MAX_PAGES) {
+            int furthest = pages.keyAt(0);
+            int last = pages.keyAt(pages.size() - 1);
+            if (Math.abs(last - lastPage) > Math.abs(furthest - lastPage)) {
+                furthest = last;
+            }
+            pages.remove(furthest);
+        }
+    }
+
+    private static class Snapshot<T> {
+        final int size;
+        final List<PageSource.Page<T>> pages = new ArrayList<>();
+
+        Snapshot(int size) {
+            this.size = size;
+        }
+    }
+
+    public interface Listener {
+
+        /**
+         * The size or any of the rows may have changed.
+         */
+        void onChanged();
+
+        void onRowsLoaded(int start, int count);
+    }
+}
@@ -1,7 +1,9 @@
 package org.odk.share.adapters;
 
 import android.content.Context;
+import android.support.v7.util.DiffUtil;
 import android.support.v7.widget.RecyclerView;
+import android.text.TextUtils;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -9,6 +11,7 @@ import android.widget.CheckBox;
 import android.widget.TextView;
 
 import org.odk.share.R;
+import org.odk.share.dto.Instance;
 import org.odk.share.dto.TransferInstance;
 import org.odk.share.listeners.OnItemClickListener;
 
@@ -50,8 +53,9 @@ public class TransferInstanceAdapter extends RecyclerView.Adapter<TransferInstan
             ButterKnife.bind(this, v);
         }
 
-        void bind(int position, final OnItemClickListener listener) {
-            itemView.setOnClickListener(v -> listener.onItemClick(v, position));
+        void bind(final OnItemClickListener listener) {
+            // rows that did not change are not bound again when others move around them
+            itemView.setOnClickListener(v -> listener.onItemClick(v, getAdapterPosition()));
         }
     }
 
@@ -63,7 +67,7 @@ public class TransferInstanceAdapter extends RecyclerView.Adapter<TransferInstan
 
     @Override
     public void onBindViewHolder(ViewHolder holder, int position) {
-        holder.bind(position, listener);
+        holder.bind(listener);
         TransferInstance instance = items.get(position);
         holder.title.setText(instance.getInstance().getDisplayName());
         holder.subtitle.setText(instance.getInstance().getDisplaySubtext());
@@ -84,4 +88,53 @@ public class TransferInstanceAdapter extends RecyclerView.Adapter<TransferInstan
     public int getItemCount() {
         return items.size();
     }
+
+    /**
+     * Replaces the rows with ones read since, rebinding only the rows the diff reports as
+     * changed.
+     */
+    public void setItems(List<TransferInstance> rows, DiffUtil.DiffResult diff) {
+        items = rows;
+        diff.dispatchUpdatesTo(this);
+    }
+
+    /**
+     * The changes from the rows shown to the rows read. Rows are matched by their transfer
+     * id, and since both lists are in id order moves are not looked for, which keeps the
+     * diff cheap enough for tens of thousands of rows. Meant to run off the main thread.
+     */
+    public static DiffUtil.DiffResult diff(List<TransferInstance> shown,
+                                           List<TransferInstance> rows) {
+        return DiffUtil.calculateDiff(new DiffUtil.Callback() {
+            @Override
+            public int getOldListSize() {
+                return shown.size();
+            }
+
+            @Override
+            public int getNewListSize() {
+                return rows.size();
+            }
+
+            @Override
+            public boolean areItemsTheSame(int oldPosition, int newPosition) {
+                return shown.get(oldPosition).getId().equals(rows.get(newPosition).getId());
+            }
+
+            @Override
+            public boolean areContentsTheSame(int oldPosition, int newPosition) {
+                return isShownTheSame(shown.get(oldPosition).getInstance(),
+                        rows.get(newPosition).getInstance());
+            }
+        }, false);
+    }
+
+    // compares what a row shows
+    private static boolean isShownTheSame(Instance before, Instance after) {
+        if (before == null || after == null) {
+            return before == after;
+        }
+        return TextUtils.equals(before.getDisplayName(), after.getDisplayName())
+                && TextUtils.equals(before.getDisplaySubtext(), after.getDisplaySubtext());
+    }
 }
\ No newline at end of file
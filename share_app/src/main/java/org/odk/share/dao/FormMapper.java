@@ -0,0 +1,63 @@
+package org.odk.share.dao;
+
+import android.database.Cursor;
+
+import org.odk.share.dto.Form;
+import org.odk.share.provider.FormsProviderAPI.FormsColumns;
+
+/**
+ * Maps Collect form rows. One builder is reused for all rows.
+ */
+class FormMapper extends RowMapper<Form> {
+
+    private final Form.Builder builder = new Form.Builder();
+    private int displayName;
+    private int description;
+    private int jrFormId;
+    private int jrVersion;
+    private int formFilePath;
+    private int submissionUri;
+    private int base64RSAPublicKey;
+    private int displaySubtext;
+    private int md5Hash;
+    private int date;
+    private int jrCacheFilePath;
+    private int formMediaPath;
+    private int language;
+
+    @Override
+    void resolve(Cursor cursor) {
+        displayName = cursor.getColumnIndex(FormsColumns.DISPLAY_NAME);
+        description = cursor.getColumnIndex(FormsColumns.DESCRIPTION);
+        jrFormId = cursor.getColumnIndex(FormsColumns.JR_FORM_ID);
+        jrVersion = cursor.getColumnIndex(FormsColumns.JR_VERSION);
+        formFilePath = cursor.getColumnIndex(FormsColumns.FORM_FILE_PATH);
+        submissionUri = cursor.getColumnIndex(FormsColumns.SUBMISSION_URI);
+        base64RSAPublicKey = cursor.getColumnIndex(FormsColumns.BASE64_RSA_PUBLIC_KEY);
+        displaySubtext = cursor.getColumnIndex(FormsColumns.DISPLAY_SUBTEXT);
+        md5Hash = cursor.getColumnIndex(FormsColumns.MD5_HASH);
+        date = cursor.getColumnIndex(FormsColumns.DATE);
+        jrCacheFilePath = cursor.getColumnIndex(FormsColumns.JRCACHE_FILE_PATH);
+        formMediaPath = cursor.getColumnIndex(FormsColumns.FORM_MEDIA_PATH);
+        language = cursor.getColumnIndex(FormsColumns.LANGUAGE);
+    }
+
+    @Override
+    Form map(Cursor cursor) {
+        return builder
+                .displayName(getString(cursor, displayName))
+                .description(getString(cursor, description))
+                .jrFormId(getString(cursor, jrFormId))
+                .jrVersion(getString(cursor, jrVersion))
+                .formFilePath(getString(cursor, formFilePath))
+                .submissionUri(getString(cursor, submissionUri))
+                .base64RSAPublicKey(getString(cursor, base64RSAPublicKey))
+                .displaySubtext(getString(cursor, displaySubtext))
+                .md5Hash(getString(cursor, md5Hash))
+                .date(getLong(cursor, date))
+                .jrCacheFilePath(getString(cursor, jrCacheFilePath))
+                .formMediaPath(getString(cursor, formMediaPath))
+                .language(getString(cursor, language))
+                .build();
+    }
+}
@@ -0,0 +1,82 @@
+package org.odk.share.dao;
+
+import android.database.Cursor;
+
+import org.odk.share.dto.Instance;
+import org.odk.share.provider.InstanceProviderAPI.InstanceColumns;
+
+/**
+ * Maps Collect instance rows, or the mirrored instance columns of a joined row. One builder
+ * is reused for all rows, so a row costs the allocation of its instance only.
+ */
+class InstanceMapper extends RowMapper<Instance> {
+
+    private final Instance.Builder builder = new Instance.Builder();
+    private final String idColumn;
+    private int id;
+    private int displayName;
+    private int submissionUri;
+    private int canEditWhenComplete;
+    private int instanceFilePath;
+    private int jrFormId;
+    private int jrVersion;
+    private int status;
+    private int lastStatusChangeDate;
+    private int displaySubtext;
+    private int deletedDate;
+
+    InstanceMapper() {
+        this(InstanceColumns._ID);
+    }
+
+    /**
+     * Reads the Collect instance id from {@code idColumn}. In a joined row _id belongs to
+     * the other table.
+     */
+    InstanceMapper(String idColumn) {
+        this.idColumn = idColumn;
+    }
+
+    @Override
+    void resolve(Cursor cursor) {
+        id = cursor.getColumnIndex(idColumn);
+        displayName = cursor.getColumnIndex(InstanceColumns.DISPLAY_NAME);
+        submissionUri = cursor.getColumnIndex(InstanceColumns.SUBMISSION_URI);
+        canEditWhenComplete = cursor.getColumnIndex(InstanceColumns.CAN_EDIT_WHEN_COMPLETE);
+        instanceFilePath = cursor.getColumnIndex(InstanceColumns.INSTANCE_FILE_PATH);
+        jrFormId = cursor.getColumnIndex(InstanceColumns.JR_FORM_ID);
+        jrVersion = cursor.getColumnIndex(InstanceColumns.JR_VERSION);
+        status = cursor.getColumnIndex(InstanceColumns.STATUS);
+        lastStatusChangeDate = cursor.getColumnIndex(InstanceColumns.LAST_STATUS_CHANGE_DATE);
+        displaySubtext = cursor.getColumnIndex(InstanceColumns.DISPLAY_SUBTEXT);
+        deletedDate = cursor.getColumnIndex(InstanceColumns.DELETED_DATE);
+    }
+
+    /**
+     * Whether the resolved cursor has instance columns at all.
+     */
+    boolean hasInstance() {
+        return displayName != -1;
+    }
+
+    long getId(Cursor cursor) {
+        return cursor.getLong(id);
+    }
+
+    @Override
+    Instance map(Cursor cursor) {
+        return builder
+                .id(getLong(cursor, id))
+                .displayName(getString(cursor, displayName))
+                .submissionUri(getString(cursor, submissionUri))
+                .canEditWhenComplete(getString(cursor, canEditWhenComplete))
+                .instanceFilePath(getString(cursor, instanceFilePath))
+                .jrFormId(getString(cursor, jrFormId))
+                .jrVersion(getString(cursor, jrVersion))
+                .status(getString(cursor, status))
+                .lastStatusChangeDate(getLong(cursor, lastStatusChangeDate))
+                .displaySubtext(getString(cursor, displaySubtext))
+                .deletedDate(getLong(cursor, deletedDate))
+                .build();
+    }
+}
@@ -16,9 +16,13 @@
 
 package org.odk.share.dao;
 
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.RemoteException;
 import android.support.v4.content.CursorLoader;
 
 import org.odk.share.application.Share;
@@ -26,6 +30,7 @@ import org.odk.share.dto.Instance;
 import org.odk.share.provider.InstanceProviderAPI;
 import org.odk.share.utilities.ApplicationConstants;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -125,6 +130,31 @@ public class InstancesDao {
         return cursorLoader;
     }
 
+    /**
+     * Saved instances a page at a time, by name.
+     */
+    public PageSource<Instance> getSavedInstancesByName() {
+        String selection = InstanceProviderAPI.InstanceColumns.DELETED_DATE + " IS NULL";
+        return new PageSource<>(InstanceProviderAPI.InstanceColumns.CONTENT_URI, null, selection,
+                null, PageSource.byName(InstanceProviderAPI.InstanceColumns.DISPLAY_NAME), true,
+                new InstanceMapper());
+    }
+
+    /**
+     * The ids of all saved instances, without reading the rest of their columns.
+     */
+    public List<Long> getSavedInstanceIds() {
+        List<Long> ids = new ArrayList<>();
+        String selection = InstanceProviderAPI.InstanceColumns.DELETED_DATE + " IS NULL";
+        try (Cursor cursor = getInstancesCursor(
+                new String[]{InstanceProviderAPI.InstanceColumns._ID}, selection, null, null)) {
+            while (cursor != null && cursor.moveToNext()) {
+                ids.add(cursor.getLong(0));
+            }
+        }
+        return ids;
+    }
+
     public Cursor getFinalizedInstancesCursor() {
         String selection = InstanceProviderAPI.InstanceColumns.STATUS + "=? or " + InstanceProviderAPI.InstanceColumns.STATUS + "=?";
         String[] selectionArgs = {InstanceProviderAPI.STATUS_COMPLETE, InstanceProviderAPI.STATUS_SUBMISSION_FAILED};
@@ -246,6 +276,34 @@ public class InstancesDao {
         return Share.getInstance().getContentResolver().insert(InstanceProviderAPI.InstanceColumns.CONTENT_URI, values);
     }
 
+    /**
+     * Inserts the instances with one call into Collect rather than one per instance, and
+     * returns their ids in the same order.
+     */
+    public List<Long> saveInstances(List<ContentValues> rows) throws IOException {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        for (ContentValues values : rows) {
+            operations.add(ContentProviderOperation
+                    .newInsert(InstanceProviderAPI.InstanceColumns.CONTENT_URI)
+                    .withValues(values)
+                    .build());
+        }
+
+        ContentProviderResult[] results;
+        try {
+            results = Share.getInstance().getContentResolver()
+                    .applyBatch(InstanceProviderAPI.AUTHORITY, operations);
+        } catch (RemoteException | OperationApplicationException e) {
+            throw new IOException("Instances could not be saved in Collect", e);
+        }
+
+        List<Long> ids = new ArrayList<>();
+        for (ContentProviderResult result : results) {
+            ids.add(Long.parseLong(result.uri.getLastPathSegment()));
+        }
+        return ids;
+    }
+
     public int updateInstance(ContentValues values, String where, String[] whereArgs) {
         return Share.getInstance().getContentResolver().update(InstanceProviderAPI.InstanceColumns.CONTENT_URI, values, where, whereArgs);
     }
@@ -290,73 +348,17 @@ public class InstancesDao {
     }
 
     public List<Instance> getInstancesFromCursor(Cursor cursor) {
-        List<Instance> instances = new ArrayList<>();
-        if (cursor != null) {
-            try {
-                while (cursor.moveToNext()) {
-                    int displayNameColumnIndex = cursor.getColumnIndex(InstanceProviderAPI.InstanceColumns.DISPLAY_NAME);
-                    int submissionUriColumnIndex = cursor.getColumnIndex(InstanceProviderAPI.InstanceColumns.SUBMISSION_URI);
-                    int canEditWhenCompleteIndex = cursor.getColumnIndex(InstanceProviderAPI.InstanceColumns.CAN_EDIT_WHEN_COMPLETE);
-                    int instanceFilePathIndex = cursor.getColumnIndex(InstanceProviderAPI.InstanceColumns.INSTANCE_FILE_PATH);
-                    int jrFormIdColumnIndex = cursor.getColumnIndex(InstanceProviderAPI.InstanceColumns.JR_FORM_ID);
-                    int jrVersionColumnIndex = cursor.getColumnIndex(InstanceProviderAPI.InstanceColumns.JR_VERSION);
-                    int statusColumnIndex = cursor.getColumnIndex(InstanceProviderAPI.InstanceColumns.STATUS);
-                    int lastStatusChangeDateColumnIndex = cursor.getColumnIndex(InstanceProviderAPI.InstanceColumns.LAST_STATUS_CHANGE_DATE);
-                    int displaySubtextColumnIndex = cursor.getColumnIndex(InstanceProviderAPI.InstanceColumns.DISPLAY_SUBTEXT);
-                    int deletedDateColumnIndex = cursor.getColumnIndex(InstanceProviderAPI.InstanceColumns.DELETED_DATE);
-
-                    Instance instance = new Instance.Builder()
-                            .displayName(cursor.getString(displayNameColumnIndex))
-                            .submissionUri(cursor.getString(submissionUriColumnIndex))
-                            .canEditWhenComplete(cursor.getString(canEditWhenCompleteIndex))
-                            .instanceFilePath(cursor.getString(instanceFilePathIndex))
-                            .jrFormId(cursor.getString(jrFormIdColumnIndex))
-                            .jrVersion(cursor.getString(jrVersionColumnIndex))
-                            .status(cursor.getString(statusColumnIndex))
-                            .lastStatusChangeDate(cursor.getLong(lastStatusChangeDateColumnIndex))
-                            .displaySubtext(cursor.getString(displaySubtextColumnIndex))
-                            .deletedDate(cursor.getLong(deletedDateColumnIndex))
-                            .build();
-
-                    instances.add(instance);
-                }
-            } finally {
-                cursor.close();
-            }
-        }
-        return instances;
+        return new InstanceMapper().mapAll(cursor);
     }
 
     public HashMap<Long, Instance> getMapFromCursor(Cursor cursor) {
         HashMap<Long, Instance> instanceMap = new HashMap<>();
         if (cursor != null) {
             try {
+                InstanceMapper mapper = new InstanceMapper();
+                mapper.resolve(cursor);
                 while (cursor.moveToNext()) {
-                    int displayNameColumnIndex = cursor.getColumnIndex(InstanceProviderAPI.InstanceColumns.DISPLAY_NAME);
-                    int submissionUriColumnIndex = cursor.getColumnIndex(InstanceProviderAPI.InstanceColumns.SUBMISSION_URI);
-                    int canEditWhenCompleteIndex = cursor.getColumnIndex(InstanceProviderAPI.InstanceColumns.CAN_EDIT_WHEN_COMPLETE);
-                    int instanceFilePathIndex = cursor.getColumnIndex(InstanceProviderAPI.InstanceColumns.INSTANCE_FILE_PATH);
-                    int jrFormIdColumnIndex = cursor.getColumnIndex(InstanceProviderAPI.InstanceColumns.JR_FORM_ID);
-                    int jrVersionColumnIndex = cursor.getColumnIndex(InstanceProviderAPI.InstanceColumns.JR_VERSION);
-                    int statusColumnIndex = cursor.getColumnIndex(InstanceProviderAPI.InstanceColumns.STATUS);
-                    int lastStatusChangeDateColumnIndex = cursor.getColumnIndex(InstanceProviderAPI.InstanceColumns.LAST_STATUS_CHANGE_DATE);
-                    int displaySubtextColumnIndex = cursor.getColumnIndex(InstanceProviderAPI.InstanceColumns.DISPLAY_SUBTEXT);
-                    int deletedDateColumnIndex = cursor.getColumnIndex(InstanceProviderAPI.InstanceColumns.DELETED_DATE);
-
-                    Instance instance = new Instance.Builder()
-                            .displayName(cursor.getString(displayNameColumnIndex))
-                            .submissionUri(cursor.getString(submissionUriColumnIndex))
-                            .canEditWhenComplete(cursor.getString(canEditWhenCompleteIndex))
-                            .instanceFilePath(cursor.getString(instanceFilePathIndex))
-                            .jrFormId(cursor.getString(jrFormIdColumnIndex))
-                            .jrVersion(cursor.getString(jrVersionColumnIndex))
-                            .status(cursor.getString(statusColumnIndex))
-                            .lastStatusChangeDate(cursor.getLong(lastStatusChangeDateColumnIndex))
-                            .displaySubtext(cursor.getString(displaySubtextColumnIndex))
-                            .deletedDate(cursor.getLong(deletedDateColumnIndex))
-                            .build();
-
-                    instanceMap.put(cursor.getLong(cursor.getColumnIndex(InstanceProviderAPI.InstanceColumns._ID)), instance);
+                    instanceMap.put(mapper.getId(cursor), mapper.map(cursor));
                 }
             } finally {
                 cursor.close();
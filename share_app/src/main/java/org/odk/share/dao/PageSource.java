@@ -0,0 +1,155 @@
+package org.odk.share.dao;
+
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.BaseColumns;
+
+import org.odk.share.application.Share;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads a sorted list from a provider one page at a time. A page following one already read
+ * is found by keyset, from the sort value and _id of the last row read, so the database
+ * seeks to it through the index rather than stepping over every row before it. Only a page
+ * whose predecessor is not known is read by offset. _id breaks ties between equal sort
+ * values, so no row is read twice or skipped when names repeat.
+ * <p>
+ * The providers of Collect take no limit of their own, so the limit is appended to the sort
+ * order, which they place at the end of the query.
+ */
+public class PageSource<T> {
+
+    private final Uri uri;
+    private final String[] projection;
+    private final String selection;
+    private final String[] selectionArgs;
+    private final String sortColumn;
+    private final boolean ascending;
+    private final RowMapper<T> mapper;
+
+    PageSource(Uri uri, String[] projection, String selection, String[] selectionArgs,
+               String sortColumn, boolean ascending, RowMapper<T> mapper) {
+        this.uri = uri;
+        this.projection = projection;
+        this.selection = selection;
+        this.selectionArgs = selectionArgs == null ? new String[0] : selectionArgs;
+        this.sortColumn = sortColumn;
+        this.ascending = ascending;
+        this.mapper = mapper;
+    }
+
+    /**
+     * Sorts by display name, ignoring case as the lists always have.
+     */
+    static String byName(String column) {
+        return column + " COLLATE NOCASE";
+    }
+
+    public Uri getUri() {
+        return uri;
+    }
+
+    /**
+     * The number of rows in the list, reading their ids only.
+     */
+    public int count() {
+        try (Cursor cursor = query(new String[]{BaseColumns._ID}, selection, selectionArgs,
+                null)) {
+            return cursor == null ? 0 : cursor.getCount();
+        }
+    }
+
+    /**
+     * The rows following {@code after}, or the first rows when it is null.
+     */
+    public Page<T> loadAfter(Key after, int limit) {
+        if (after == null) {
+            return load(selection, selectionArgs, " LIMIT " + limit);
+        }
+
+        String op = ascending ? " > ?" : " < ?";
+        String seek = "(" + sortColumn + op + " OR (" + sortColumn + " = ? AND "
+                + BaseColumns._ID + " > ?))";
+        String[] seekArgs = {after.value, after.value, String.valueOf(after.id)};
+        if (selection == null) {
+            return load(seek, seekArgs, " LIMIT " + limit);
+        }
+        String[] args = new String[selectionArgs.length + seekArgs.length];
+        System.arraycopy(selectionArgs, 0, args, 0, selectionArgs.length);
+        System.arraycopy(seekArgs, 0, args, selectionArgs.length, seekArgs.length);
+        return load("(" + selection + ") AND " + seek, args, " LIMIT " + limit);
+    }
+
+    /**
+     * The rows from {@code offset} on, for a page whose predecessor has not been read.
+     */
+    public Page<T> loadAt(int offset, int limit) {
+        return load(selection, selectionArgs, " LIMIT " + limit + " OFFSET " + offset);
+    }
+
+    private Page<T> load(String where, String[] args, String limit) {
+        String order = sortColumn + (ascending ? " ASC, " : " DESC, ") + BaseColumns._ID + " ASC";
+        List<T> rows = new ArrayList<>();
+        Key last = null;
+        try (Cursor cursor = query(projection, where, args, order + limit)) {
+            if (cursor != null) {
+                mapper.resolve(cursor);
+                int value = cursor.getColumnIndexOrThrow(getKeyColumn());
+                int id = cursor.getColumnIndexOrThrow(BaseColumns._ID);
+                while (cursor.moveToNext()) {
+                    rows.add(mapper.map(cursor));
+                    if (cursor.isLast()) {
+                        last = new Key(cursor.getString(value), cursor.getLong(id));
+                    }
+                }
+            }
+        }
+        return new Page<>(rows, last);
+    }
+
+    private String getKeyColumn() {
+        int collate = sortColumn.indexOf(' ');
+        return collate == -1 ? sortColumn : sortColumn.substring(0, collate);
+    }
+
+    private Cursor query(String[] projection, String where, String[] args, String order) {
+        return Share.getInstance().getContentResolver()
+                .query(uri, projection, where, args, order);
+    }
+
+    /**
+     * The position of a row in the sort order.
+     */
+    public static final class Key {
+        final String value;
+        final long id;
+
+        Key(String value, long id) {
+            this.value = value;
+            this.id = id;
+        }
+    }
+
+    public static final class Page<T> {
+        private final List<T> rows;
+        private final Key last;
+
+        Page(List<T> rows, Key last) {
+            this.rows = rows;
+            this.last = last;
+        }
+
+        public List<T> getRows() {
+            return rows;
+        }
+
+        /**
+         * The key to read the next page after, null if the page is empty.
+         */
+        public Key getLast() {
+            return last;
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package org.odk.share.dao;
+
+import android.database.Cursor;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Maps the rows of a cursor to objects. Column indexes are looked up once per cursor rather
+ * than once per row and column, and columns left out of the projection map to null.
+ */
+abstract class RowMapper<T> {
+
+    /**
+     * Looks up the indexes of the columns in the cursor. Must be called before the rows of
+     * a new cursor are mapped.
+     */
+    abstract void resolve(Cursor cursor);
+
+    /**
+     * Maps the row the cursor is at.
+     */
+    abstract T map(Cursor cursor);
+
+    /**
+     * Maps every remaining row and closes the cursor.
+     */
+    List<T> mapAll(Cursor cursor) {
+        List<T> rows = new ArrayList<>();
+        if (cursor != null) {
+            try {
+                resolve(cursor);
+                while (cursor.moveToNext()) {
+                    rows.add(map(cursor));
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        return rows;
+    }
+
+    static String getString(Cursor cursor, int index) {
+        return index == -1 ? null : cursor.getString(index);
+    }
+
+    static Long getLong(Cursor cursor, int index) {
+        return index == -1 ? null : cursor.getLong(index);
+    }
+}
@@ -1,12 +1,14 @@
 package org.odk.share.dao;
 
+import android.content.ContentValues;
 import android.database.Cursor;
 import android.support.v4.content.CursorLoader;
 
 import org.odk.share.application.Share;
+import org.odk.share.database.ShareDatabaseHelper;
+import org.odk.share.dto.Instance;
 import org.odk.share.dto.TransferInstance;
 
-import java.util.ArrayList;
 import java.util.List;
 
 import static org.odk.share.provider.TransferProvider.CONTENT_URI;
@@ -19,13 +21,13 @@ public class TransferDao {
 
     public Cursor getSentInstancesCursor() {
         String selection = TransferInstance.TRANSFER_STATUS + " =? ";
-        String[] selectionArgs = {TransferInstance.STATUS_FORM_SENT};
+        String[] selectionArgs = {String.valueOf(TransferInstance.STATUS_FORM_SENT)};
         return getInstancesCursor(null, selection, selectionArgs, null);
     }
 
     public Cursor getReceiveInstancesCursor() {
         String selection = TransferInstance.TRANSFER_STATUS + " =? ";
-        String[] selectionArgs = {TransferInstance.STATUS_FORM_RECEIVE};
+        String[] selectionArgs = {String.valueOf(TransferInstance.STATUS_FORM_RECEIVE)};
         return getInstancesCursor(null, selection, selectionArgs, null);
     }
 
@@ -41,16 +43,35 @@ public class TransferDao {
         return getInstancesCursor(null, selection, selectionArgs, null);
     }
 
+    /**
+     * Sent transfers of the instances of one form version, with the metadata of the
+     * instances as mirrored by {@link org.odk.share.database.InstanceMirror}.
+     */
+    public Cursor getSentInstancesCursor(String formId, String formVersion) {
+        return getShareDatabase().queryTransfers(TransferInstance.TRANSFER_STATUS,
+                String.valueOf(TransferInstance.STATUS_FORM_SENT), formId, formVersion);
+    }
+
+    public Cursor getReceiveInstancesCursor(String formId, String formVersion) {
+        return getShareDatabase().queryTransfers(TransferInstance.TRANSFER_STATUS,
+                String.valueOf(TransferInstance.STATUS_FORM_RECEIVE), formId, formVersion);
+    }
+
+    public Cursor getReviewedInstancesCursor(String formId, String formVersion) {
+        return getShareDatabase().queryTransfers(TransferInstance.REVIEWED, "1", formId,
+                formVersion);
+    }
+
     public CursorLoader getSentInstancesCursorLoader() {
         String selection = TransferInstance.TRANSFER_STATUS + " =? ";
-        String[] selectionArgs = {TransferInstance.STATUS_FORM_SENT};
+        String[] selectionArgs = {String.valueOf(TransferInstance.STATUS_FORM_SENT)};
 
         return getInstancesCursorLoader(null, selection, selectionArgs, null);
     }
 
     public CursorLoader getReceiveInstancesCursorLoader() {
         String selection = TransferInstance.TRANSFER_STATUS + " =? ";
-        String[] selectionArgs = {TransferInstance.STATUS_FORM_RECEIVE};
+        String[] selectionArgs = {String.valueOf(TransferInstance.STATUS_FORM_RECEIVE)};
 
         return getInstancesCursorLoader(null, selection, selectionArgs, null);
     }
@@ -67,36 +88,27 @@ public class TransferDao {
                 .query(CONTENT_URI, projection, selection, selectionArgs, sortOrder);
     }
 
+    /**
+     * Inserts the rows in one transaction with a single change notification.
+     */
+    public int saveInstances(List<ContentValues> rows) {
+        return Share.getInstance().getContentResolver()
+                .bulkInsert(CONTENT_URI, rows.toArray(new ContentValues[rows.size()]));
+    }
+
     public CursorLoader getInstancesCursorLoader(String[] projection, String selection, String[] selectionArgs, String sortOrder) {
         return new CursorLoader(Share.getInstance(), CONTENT_URI, projection, selection, selectionArgs, sortOrder);
     }
 
+    private ShareDatabaseHelper getShareDatabase() {
+        return ShareDatabaseHelper.getInstance(Share.getInstance());
+    }
+
+    /**
+     * Transfers of the cursor. Rows joined with the instance metadata also get their
+     * {@link Instance}.
+     */
     public List<TransferInstance> getInstancesFromCursor(Cursor cursor) {
-        List<TransferInstance> instances = new ArrayList<>();
-        if (cursor != null) {
-            try {
-                while (cursor.moveToNext()) {
-                    int idColumnIndex = cursor.getColumnIndex(TransferInstance.ID);
-                    int isReviewedColumnIndex = cursor.getColumnIndex(TransferInstance.REVIEWED);
-                    int instructionColumnIndex = cursor.getColumnIndex(TransferInstance.INSTRUCTIONS);
-                    int instanceIdColumnIndex = cursor.getColumnIndex(TransferInstance.INSTANCE_ID);
-                    int transferStatusColumnIndex = cursor.getColumnIndex(TransferInstance.TRANSFER_STATUS);
-                    int lastStatusChangeDateColumnIndex = cursor.getColumnIndex(TransferInstance.LAST_STATUS_CHANGE_DATE);
-
-                    TransferInstance transferInstance = new TransferInstance();
-                    transferInstance.setId(cursor.getLong(idColumnIndex));
-                    transferInstance.setReviewed(cursor.getInt(isReviewedColumnIndex));
-                    transferInstance.setInstructions(cursor.getString(instructionColumnIndex));
-                    transferInstance.setInstanceId(cursor.getLong(instanceIdColumnIndex));
-                    transferInstance.setTransferStatus(cursor.getString(transferStatusColumnIndex));
-                    transferInstance.setLastStatusChangeDate(cursor.getLong(lastStatusChangeDateColumnIndex));
-
-                    instances.add(transferInstance);
-                }
-            } finally {
-                cursor.close();
-            }
-        }
-        return instances;
+        return new TransferInstanceMapper().mapAll(cursor);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,48 @@
+package org.odk.share.dao;
+
+import android.database.Cursor;
+
+import org.odk.share.dto.TransferInstance;
+
+/**
+ * Maps transfer rows. Rows joined with the mirrored instance metadata also get their
+ * instance.
+ */
+class TransferInstanceMapper extends RowMapper<TransferInstance> {
+
+    // _id of a joined row is the transfer's, the instance is named by instanceId
+    private final InstanceMapper instanceMapper = new InstanceMapper(TransferInstance.INSTANCE_ID);
+    private int id;
+    private int reviewed;
+    private int instructions;
+    private int instanceId;
+    private int transferStatus;
+    private int lastStatusChangeDate;
+
+    @Override
+    void resolve(Cursor cursor) {
+        id = cursor.getColumnIndex(TransferInstance.ID);
+        reviewed = cursor.getColumnIndex(TransferInstance.REVIEWED);
+        instructions = cursor.getColumnIndex(TransferInstance.INSTRUCTIONS);
+        instanceId = cursor.getColumnIndex(TransferInstance.INSTANCE_ID);
+        transferStatus = cursor.getColumnIndex(TransferInstance.TRANSFER_STATUS);
+        lastStatusChangeDate = cursor.getColumnIndex(TransferInstance.LAST_STATUS_CHANGE_DATE);
+        instanceMapper.resolve(cursor);
+    }
+
+    @Override
+    TransferInstance map(Cursor cursor) {
+        TransferInstance transferInstance = new TransferInstance();
+        transferInstance.setId(getLong(cursor, id));
+        transferInstance.setReviewed(reviewed == -1 ? 0 : cursor.getInt(reviewed));
+        transferInstance.setInstructions(getString(cursor, instructions));
+        transferInstance.setInstanceId(getLong(cursor, instanceId));
+        transferInstance.setTransferStatus(
+                transferStatus == -1 ? 0 : cursor.getInt(transferStatus));
+        transferInstance.setLastStatusChangeDate(getLong(cursor, lastStatusChangeDate));
+        if (instanceMapper.hasInstance()) {
+            transferInstance.setInstance(instanceMapper.map(cursor));
+        }
+        return transferInstance;
+    }
+}
@@ -0,0 +1,100 @@
+package org.odk.share.database;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+
+import org.odk.share.application.Share;
+import org.odk.share.dao.InstancesDao;
+import org.odk.share.provider.InstanceProviderAPI.InstanceColumns;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import timber.log.Timber;
+
+import static org.odk.share.dto.TransferInstance.INSTANCE_ID;
+
+/**
+ * Keeps the mirror of Collect instance metadata in the share database up to date. Only
+ * instances whose status changed since the latest change already mirrored are read from
+ * Collect. Instances Collect deleted outright leave no change behind, so their ids are only
+ * compared when the number of instances differs.
+ * <p>
+ * Collect only moves the status change date when the status changes. An edit that keeps the
+ * status, such as a new display name or subtext on a saved instance, is therefore not seen,
+ * and the mirror shows the old values until the status of that instance changes again.
+ */
+public class InstanceMirror {
+
+    private static final String[] PROJECTION = {
+            InstanceColumns._ID,
+            InstanceColumns.JR_FORM_ID,
+            InstanceColumns.JR_VERSION,
+            InstanceColumns.DISPLAY_NAME,
+            InstanceColumns.DISPLAY_SUBTEXT,
+            InstanceColumns.STATUS,
+            InstanceColumns.LAST_STATUS_CHANGE_DATE,
+            InstanceColumns.DELETED_DATE
+    };
+
+    private final ShareDatabaseHelper helper =
+            ShareDatabaseHelper.getInstance(Share.getInstance());
+    private final InstancesDao instancesDao = new InstancesDao();
+
+    /**
+     * Brings the mirror up to date. Tabs loading at the same time sync one after the other,
+     * so the later ones find little left to read.
+     */
+    public void sync() {
+        synchronized (InstanceMirror.class) {
+            syncChanges();
+            removeDeleted();
+        }
+    }
+
+    private void syncChanges() {
+        // changes within the same millisecond as the latest one may not be mirrored yet
+        long since = helper.getLastMirroredChange();
+        List<ContentValues> rows = new ArrayList<>();
+        List<Long> removed = new ArrayList<>();
+        try (Cursor cursor = instancesDao.getInstancesCursor(PROJECTION,
+                InstanceColumns.LAST_STATUS_CHANGE_DATE + " >= ?",
+                new String[]{String.valueOf(since)}, null)) {
+            while (cursor != null && cursor.moveToNext()) {
+                long id = cursor.getLong(0);
+                if (!cursor.isNull(7)) {
+                    removed.add(id);
+                    continue;
+                }
+                ContentValues values = new ContentValues();
+                values.put(INSTANCE_ID, id);
+                values.put(InstanceColumns.JR_FORM_ID, cursor.getString(1));
+                values.put(InstanceColumns.JR_VERSION, cursor.getString(2));
+                values.put(InstanceColumns.DISPLAY_NAME, cursor.getString(3));
+                values.put(InstanceColumns.DISPLAY_SUBTEXT, cursor.getString(4));
+                values.put(InstanceColumns.STATUS, cursor.getString(5));
+                values.put(InstanceColumns.LAST_STATUS_CHANGE_DATE, cursor.getLong(6));
+                rows.add(values);
+            }
+        }
+        helper.saveMetadata(rows, removed);
+        Timber.d("Mirrored %d changed and %d deleted instances", rows.size(), removed.size());
+    }
+
+    private void removeDeleted() {
+        String selection = InstanceColumns.DELETED_DATE + " IS NULL";
+        try (Cursor cursor = instancesDao.getInstancesCursor(new String[]{InstanceColumns._ID},
+                selection, null, null)) {
+            if (cursor == null || cursor.getCount() == helper.getMirroredCount()) {
+                return;
+            }
+            Set<Long> ids = new HashSet<>();
+            while (cursor.moveToNext()) {
+                ids.add(cursor.getLong(0));
+            }
+            helper.retainMetadata(ids);
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package org.odk.share.database;
+
+import android.database.sqlite.SQLiteDatabase;
+
+/**
+ * One step of the share database schema, from one version to the next. Steps run inside
+ * the transaction of the upgrade, so a step that fails leaves the previous version intact.
+ */
+interface Migration {
+
+    void apply(SQLiteDatabase db);
+}
@@ -2,10 +2,23 @@ package org.odk.share.database;
 
 import android.content.ContentValues;
 import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 
 import org.odk.share.application.Share;
+import org.odk.share.dto.FileDigest;
+import org.odk.share.dto.InstanceDigest;
+import org.odk.share.dto.InstanceOrigin;
+import org.odk.share.provider.InstanceProviderAPI.InstanceColumns;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import timber.log.Timber;
 
@@ -14,6 +27,8 @@ import static org.odk.share.dto.TransferInstance.INSTANCE_ID;
 import static org.odk.share.dto.TransferInstance.INSTRUCTIONS;
 import static org.odk.share.dto.TransferInstance.LAST_STATUS_CHANGE_DATE;
 import static org.odk.share.dto.TransferInstance.REVIEWED;
+import static org.odk.share.dto.TransferInstance.STATUS_FORM_RECEIVE;
+import static org.odk.share.dto.TransferInstance.STATUS_FORM_SENT;
 import static org.odk.share.dto.TransferInstance.TRANSFER_STATUS;
 
 /**
@@ -24,27 +39,67 @@ public class ShareDatabaseHelper extends SQLiteOpenHelper {
 
     private static final String DATABASE_NAME = "share.db";
     public static final String SHARE_TABLE_NAME = "transfers";
+    public static final String DIGEST_TABLE_NAME = "digests";
+    public static final String FILE_DIGEST_TABLE_NAME = "file_digests";
+    public static final String ORIGIN_TABLE_NAME = "origins";
+    public static final String METADATA_TABLE_NAME = "instance_metadata";
+
+    // MIGRATIONS[i] brings the schema from version i + 1 to version i + 2
+    private static final Migration[] MIGRATIONS = {
+            ShareDatabaseHelper::createDigestsTable,
+            ShareDatabaseHelper::createFileDigestsTable,
+            // instances received before have no origin and are sent whole once more
+            ShareDatabaseHelper::createOriginsTable,
+            ShareDatabaseHelper::indexTransfersTable,
+            // filled from Collect by the first InstanceMirror sync
+            ShareDatabaseHelper::createMetadataTable,
+    };
+    private static final int DATABASE_VERSION = MIGRATIONS.length + 1;
+    // stays well below the limit SQLite puts on bound arguments
+    private static final int MAX_QUERY_ARGS = 500;
 
-    private static final int DATABASE_VERSION = 1;
+    private static ShareDatabaseHelper instance;
 
-    public ShareDatabaseHelper(Context context) {
+    private ShareDatabaseHelper(Context context) {
         super(new DatabaseContext(context, Share.METADATA_PATH), DATABASE_NAME, null, DATABASE_VERSION);
     }
 
+    /**
+     * The helper shared by the whole process. Its connection stays open, so writers do not
+     * pay for opening the database and reading its schema again, and concurrent writers
+     * queue on one connection instead of failing on each other's locks.
+     */
+    public static synchronized ShareDatabaseHelper getInstance(Context context) {
+        if (instance == null) {
+            instance = new ShareDatabaseHelper(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    /**
+     * Creates the first version of the schema and migrates it like an existing database,
+     * so new and upgraded databases always end up with the same schema.
+     */
     @Override
     public void onCreate(SQLiteDatabase db) {
         createInstancesTable(db);
+        onUpgrade(db, 1, DATABASE_VERSION);
     }
 
+    /**
+     * Runs the migration steps between the versions in order. Every step keeps the
+     * transfer history.
+     */
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
 
         Timber.d("onUpgrade -- OldVersion: %s, NewVersion: %s", oldVersion, newVersion);
-        db.execSQL("DROP TABLE IF EXISTS " + SHARE_TABLE_NAME);
-        onCreate(db);
+        for (int version = oldVersion; version < newVersion; version++) {
+            MIGRATIONS[version - 1].apply(db);
+        }
     }
 
-    private void createInstancesTable(SQLiteDatabase db) {
+    private static void createInstancesTable(SQLiteDatabase db) {
         db.execSQL("CREATE TABLE " + SHARE_TABLE_NAME + " ("
                 + ID + " integer primary key, "
                 + REVIEWED + " boolean, "
@@ -55,6 +110,90 @@ public class ShareDatabaseHelper extends SQLiteOpenHelper {
 
     }
 
+    private static void createDigestsTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + DIGEST_TABLE_NAME + " ("
+                + InstanceDigest.ID + " integer primary key, "
+                + InstanceDigest.INSTANCE_ID + " integer unique not null, "
+                + InstanceDigest.DIGEST + " text not null, "
+                + InstanceDigest.SIZE + " integer not null, "
+                + InstanceDigest.LAST_MODIFIED + " integer not null ); ");
+        db.execSQL("CREATE INDEX " + DIGEST_TABLE_NAME + "_" + InstanceDigest.DIGEST
+                + " ON " + DIGEST_TABLE_NAME + " (" + InstanceDigest.DIGEST + ")");
+    }
+
+    private static void createFileDigestsTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + FILE_DIGEST_TABLE_NAME + " ("
+                + FileDigest.ID + " integer primary key, "
+                + FileDigest.PATH + " text unique not null, "
+                + FileDigest.DIGEST + " text not null, "
+                + FileDigest.SIZE + " integer not null, "
+                + FileDigest.LAST_MODIFIED + " integer not null ); ");
+    }
+
+    private static void createOriginsTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + ORIGIN_TABLE_NAME + " ("
+                + InstanceOrigin.ID + " integer primary key, "
+                + InstanceOrigin.INSTANCE_ID + " integer unique not null, "
+                + InstanceOrigin.ORIGIN + " text not null ); ");
+        db.execSQL("CREATE INDEX " + ORIGIN_TABLE_NAME + "_" + InstanceOrigin.ORIGIN
+                + " ON " + ORIGIN_TABLE_NAME + " (" + InstanceOrigin.ORIGIN + ")");
+    }
+
+    /**
+     * Rebuilds the transfers table with integer statuses and a reviewed flag that is never
+     * null, and indexes the columns the transfer lists filter and sort on. SQLite cannot
+     * change the type of a column, so the rows are copied into a new table.
+     */
+    private static void indexTransfersTable(SQLiteDatabase db) {
+        String old = SHARE_TABLE_NAME + "_old";
+        db.execSQL("ALTER TABLE " + SHARE_TABLE_NAME + " RENAME TO " + old);
+        db.execSQL("CREATE TABLE " + SHARE_TABLE_NAME + " ("
+                + ID + " integer primary key, "
+                + REVIEWED + " integer not null default 0, "
+                + INSTRUCTIONS + " text, "
+                + INSTANCE_ID + " integer not null, "
+                + TRANSFER_STATUS + " integer not null, "
+                + LAST_STATUS_CHANGE_DATE + " integer not null ); ");
+        db.execSQL("INSERT INTO " + SHARE_TABLE_NAME + " (" + ID + ", " + REVIEWED + ", "
+                + INSTRUCTIONS + ", " + INSTANCE_ID + ", " + TRANSFER_STATUS + ", "
+                + LAST_STATUS_CHANGE_DATE + ") SELECT " + ID + ", "
+                + "COALESCE(" + REVIEWED + ", 0), " + INSTRUCTIONS + ", " + INSTANCE_ID + ", "
+                + "CASE " + TRANSFER_STATUS + " WHEN 'sent' THEN " + STATUS_FORM_SENT
+                + " ELSE " + STATUS_FORM_RECEIVE + " END, " + LAST_STATUS_CHANGE_DATE
+                + " FROM " + old);
+        db.execSQL("DROP TABLE " + old);
+
+        db.execSQL("CREATE INDEX " + SHARE_TABLE_NAME + "_" + INSTANCE_ID
+                + " ON " + SHARE_TABLE_NAME + " (" + INSTANCE_ID + ")");
+        db.execSQL("CREATE INDEX " + SHARE_TABLE_NAME + "_" + TRANSFER_STATUS
+                + " ON " + SHARE_TABLE_NAME + " (" + TRANSFER_STATUS + ", "
+                + LAST_STATUS_CHANGE_DATE + ")");
+        db.execSQL("CREATE INDEX " + SHARE_TABLE_NAME + "_" + REVIEWED
+                + " ON " + SHARE_TABLE_NAME + " (" + REVIEWED + ", "
+                + LAST_STATUS_CHANGE_DATE + ")");
+    }
+
+    /**
+     * Mirror of the Collect instance columns the transfer lists show, keyed by Collect id,
+     * so the lists can be joined with the transfers in SQL.
+     */
+    private static void createMetadataTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + METADATA_TABLE_NAME + " ("
+                + INSTANCE_ID + " integer primary key, "
+                + InstanceColumns.JR_FORM_ID + " text not null, "
+                + InstanceColumns.JR_VERSION + " text, "
+                + InstanceColumns.DISPLAY_NAME + " text, "
+                + InstanceColumns.DISPLAY_SUBTEXT + " text, "
+                + InstanceColumns.STATUS + " text, "
+                + InstanceColumns.LAST_STATUS_CHANGE_DATE + " integer not null ); ");
+        db.execSQL("CREATE INDEX " + METADATA_TABLE_NAME + "_" + InstanceColumns.JR_FORM_ID
+                + " ON " + METADATA_TABLE_NAME + " (" + InstanceColumns.JR_FORM_ID + ", "
+                + InstanceColumns.JR_VERSION + ")");
+        db.execSQL("CREATE INDEX " + METADATA_TABLE_NAME + "_"
+                + InstanceColumns.LAST_STATUS_CHANGE_DATE + " ON " + METADATA_TABLE_NAME
+                + " (" + InstanceColumns.LAST_STATUS_CHANGE_DATE + ")");
+    }
+
     public long insertInstance(ContentValues values) {
         SQLiteDatabase sqLiteDatabase = this.getWritableDatabase();
 
@@ -68,7 +207,325 @@ public class ShareDatabaseHelper extends SQLiteOpenHelper {
             values.put(LAST_STATUS_CHANGE_DATE, now);
         }
         long id = sqLiteDatabase.insert(SHARE_TABLE_NAME, null, values);
-        sqLiteDatabase.close();
         return id;
     }
-}
\ No newline at end of file
+
+    /**
+     * Inserts the rows in one transaction, so a batch of instances costs a single commit.
+     */
+    public void insertInstances(List<ContentValues> rows) {
+        if (rows.isEmpty()) {
+            return;
+        }
+
+        Long now = System.currentTimeMillis();
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (ContentValues values : rows) {
+                if (!values.containsKey(REVIEWED)) {
+                    values.put(REVIEWED, false);
+                }
+                if (!values.containsKey(LAST_STATUS_CHANGE_DATE)) {
+                    values.put(LAST_STATUS_CHANGE_DATE, now);
+                }
+                db.insert(SHARE_TABLE_NAME, null, values);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Stores the share rows, digests and origins of received instances in one transaction,
+     * so a group of instances costs a single commit.
+     */
+    public void saveReceived(List<ContentValues> rows, List<InstanceDigest> digests,
+                             List<InstanceOrigin> origins) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            insertInstances(rows);
+            saveDigests(digests);
+            saveOrigins(origins);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Transfers with the given value in a column of the transfers table, of the instances of
+     * one form version, joined with their mirrored metadata. Transfers of instances missing
+     * from the mirror are left out, like instances that are no longer in Collect.
+     */
+    public Cursor queryTransfers(String column, String value, String formId,
+                                 String formVersion) {
+        List<String> args = new ArrayList<>();
+        StringBuilder sql = new StringBuilder("SELECT t.*, m." + InstanceColumns.DISPLAY_NAME
+                + ", m." + InstanceColumns.DISPLAY_SUBTEXT + ", m." + InstanceColumns.JR_FORM_ID
+                + ", m." + InstanceColumns.JR_VERSION + ", m." + InstanceColumns.STATUS
+                + ", m." + InstanceColumns.LAST_STATUS_CHANGE_DATE
+                + " FROM " + SHARE_TABLE_NAME + " t JOIN " + METADATA_TABLE_NAME + " m ON m."
+                + INSTANCE_ID + " = t." + INSTANCE_ID
+                + " WHERE m." + InstanceColumns.JR_FORM_ID + " = ?");
+        args.add(formId);
+        if (formVersion == null) {
+            sql.append(" AND m." + InstanceColumns.JR_VERSION + " IS NULL");
+        } else {
+            sql.append(" AND m." + InstanceColumns.JR_VERSION + " = ?");
+            args.add(formVersion);
+        }
+        sql.append(" AND t.").append(column).append(" = ? ORDER BY t." + ID);
+        args.add(value);
+        return getReadableDatabase().rawQuery(sql.toString(),
+                args.toArray(new String[args.size()]));
+    }
+
+    /**
+     * Latest Collect change date in the mirror, 0 when it is empty.
+     */
+    public long getLastMirroredChange() {
+        return DatabaseUtils.longForQuery(getReadableDatabase(), "SELECT COALESCE(MAX("
+                + InstanceColumns.LAST_STATUS_CHANGE_DATE + "), 0) FROM "
+                + METADATA_TABLE_NAME, null);
+    }
+
+    public long getMirroredCount() {
+        return DatabaseUtils.queryNumEntries(getReadableDatabase(), METADATA_TABLE_NAME);
+    }
+
+    /**
+     * Stores the metadata of new and changed instances and drops the removed ones, in one
+     * transaction.
+     */
+    public void saveMetadata(List<ContentValues> rows, List<Long> removed) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (ContentValues values : rows) {
+                db.insertWithOnConflict(METADATA_TABLE_NAME, null, values,
+                        SQLiteDatabase.CONFLICT_REPLACE);
+            }
+            deleteMetadata(db, removed);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Drops the metadata of every instance not in the given ids.
+     */
+    public void retainMetadata(Set<Long> ids) {
+        List<Long> removed = new ArrayList<>();
+        SQLiteDatabase db = getWritableDatabase();
+        try (Cursor cursor = db.query(METADATA_TABLE_NAME, new String[]{INSTANCE_ID},
+                null, null, null, null, null)) {
+            while (cursor.moveToNext()) {
+                if (!ids.contains(cursor.getLong(0))) {
+                    removed.add(cursor.getLong(0));
+                }
+            }
+        }
+        saveMetadata(new ArrayList<>(), removed);
+    }
+
+    private static void deleteMetadata(SQLiteDatabase db, List<Long> ids) {
+        for (int start = 0; start < ids.size(); start += MAX_QUERY_ARGS) {
+            List<Long> chunk = ids.subList(start, Math.min(ids.size(), start + MAX_QUERY_ARGS));
+            String[] args = new String[chunk.size()];
+            for (int i = 0; i < args.length; i++) {
+                args[i] = String.valueOf(chunk.get(i));
+            }
+            db.delete(METADATA_TABLE_NAME, getInSelection(INSTANCE_ID, args.length), args);
+        }
+    }
+
+    /**
+     * Cached digests of the given Collect instances, by instance id.
+     */
+    public Map<Long, InstanceDigest> getDigests(List<Long> instanceIds) {
+        List<String> args = new ArrayList<>();
+        for (Long id : instanceIds) {
+            args.add(String.valueOf(id));
+        }
+
+        Map<Long, InstanceDigest> digests = new HashMap<>();
+        for (InstanceDigest digest : queryDigests(InstanceDigest.INSTANCE_ID, args)) {
+            digests.put(digest.getInstanceId(), digest);
+        }
+        return digests;
+    }
+
+    /**
+     * Collect instances holding any of the given digests, by digest.
+     */
+    public Map<String, Long> getInstancesByDigest(Collection<String> digests) {
+        Map<String, Long> instances = new HashMap<>();
+        for (InstanceDigest digest : queryDigests(InstanceDigest.DIGEST, new ArrayList<>(digests))) {
+            instances.put(digest.getDigest(), digest.getInstanceId());
+        }
+        return instances;
+    }
+
+    /**
+     * Stores the digests in one transaction, replacing earlier digests of the same instances.
+     */
+    public void saveDigests(List<InstanceDigest> digests) {
+        if (digests.isEmpty()) {
+            return;
+        }
+
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (InstanceDigest digest : digests) {
+                ContentValues values = new ContentValues();
+                values.put(InstanceDigest.INSTANCE_ID, digest.getInstanceId());
+                values.put(InstanceDigest.DIGEST, digest.getDigest());
+                values.put(InstanceDigest.SIZE, digest.getSize());
+                values.put(InstanceDigest.LAST_MODIFIED, digest.getLastModified());
+                db.insertWithOnConflict(DIGEST_TABLE_NAME, null, values,
+                        SQLiteDatabase.CONFLICT_REPLACE);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Collect instances received with any of the given origins, by origin.
+     */
+    public Map<String, Long> getInstancesByOrigin(Collection<String> origins) {
+        Map<String, Long> instances = new HashMap<>();
+        if (origins.isEmpty()) {
+            return instances;
+        }
+
+        List<String> values = new ArrayList<>(origins);
+        SQLiteDatabase db = getReadableDatabase();
+        for (int start = 0; start < values.size(); start += MAX_QUERY_ARGS) {
+            List<String> chunk = values.subList(start,
+                    Math.min(values.size(), start + MAX_QUERY_ARGS));
+            try (Cursor cursor = db.query(ORIGIN_TABLE_NAME, null,
+                    getInSelection(InstanceOrigin.ORIGIN, chunk.size()),
+                    chunk.toArray(new String[chunk.size()]), null, null, null)) {
+                while (cursor.moveToNext()) {
+                    instances.put(
+                            cursor.getString(cursor.getColumnIndex(InstanceOrigin.ORIGIN)),
+                            cursor.getLong(cursor.getColumnIndex(InstanceOrigin.INSTANCE_ID)));
+                }
+            }
+        }
+        return instances;
+    }
+
+    public void saveOrigins(List<InstanceOrigin> origins) {
+        if (origins.isEmpty()) {
+            return;
+        }
+
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (InstanceOrigin origin : origins) {
+                ContentValues values = new ContentValues();
+                values.put(InstanceOrigin.INSTANCE_ID, origin.getInstanceId());
+                values.put(InstanceOrigin.ORIGIN, origin.getOrigin());
+                db.insertWithOnConflict(ORIGIN_TABLE_NAME, null, values,
+                        SQLiteDatabase.CONFLICT_REPLACE);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Cached digests of the given files, by path.
+     */
+    public Map<String, FileDigest> getFileDigests(List<String> paths) {
+        Map<String, FileDigest> digests = new HashMap<>();
+        if (paths.isEmpty()) {
+            return digests;
+        }
+
+        SQLiteDatabase db = getReadableDatabase();
+        for (int start = 0; start < paths.size(); start += MAX_QUERY_ARGS) {
+            List<String> chunk = paths.subList(start,
+                    Math.min(paths.size(), start + MAX_QUERY_ARGS));
+            try (Cursor cursor = db.query(FILE_DIGEST_TABLE_NAME, null,
+                    getInSelection(FileDigest.PATH, chunk.size()),
+                    chunk.toArray(new String[chunk.size()]), null, null, null)) {
+                while (cursor.moveToNext()) {
+                    FileDigest digest = new FileDigest(
+                            cursor.getString(cursor.getColumnIndex(FileDigest.PATH)),
+                            cursor.getString(cursor.getColumnIndex(FileDigest.DIGEST)),
+                            cursor.getLong(cursor.getColumnIndex(FileDigest.SIZE)),
+                            cursor.getLong(cursor.getColumnIndex(FileDigest.LAST_MODIFIED)));
+                    digests.put(digest.getPath(), digest);
+                }
+            }
+        }
+        return digests;
+    }
+
+    public void saveFileDigests(List<FileDigest> digests) {
+        if (digests.isEmpty()) {
+            return;
+        }
+
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (FileDigest digest : digests) {
+                ContentValues values = new ContentValues();
+                values.put(FileDigest.PATH, digest.getPath());
+                values.put(FileDigest.DIGEST, digest.getDigest());
+                values.put(FileDigest.SIZE, digest.getSize());
+                values.put(FileDigest.LAST_MODIFIED, digest.getLastModified());
+                db.insertWithOnConflict(FILE_DIGEST_TABLE_NAME, null, values,
+                        SQLiteDatabase.CONFLICT_REPLACE);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private static String getInSelection(String column, int count) {
+        StringBuilder selection = new StringBuilder(column + " IN (");
+        for (int i = 0; i < count; i++) {
+            selection.append(i > 0 ? ",?" : "?");
+        }
+        return selection.append(")").toString();
+    }
+
+    private List<InstanceDigest> queryDigests(String column, List<String> values) {
+        List<InstanceDigest> digests = new ArrayList<>();
+        if (values.isEmpty()) {
+            return digests;
+        }
+
+        SQLiteDatabase db = getReadableDatabase();
+        for (int start = 0; start < values.size(); start += MAX_QUERY_ARGS) {
+            List<String> chunk = values.subList(start,
+                    Math.min(values.size(), start + MAX_QUERY_ARGS));
+            try (Cursor cursor = db.query(DIGEST_TABLE_NAME, null,
+                    getInSelection(column, chunk.size()),
+                    chunk.toArray(new String[chunk.size()]), null, null, null)) {
+                while (cursor.moveToNext()) {
+                    digests.add(new InstanceDigest(
+                            cursor.getLong(cursor.getColumnIndex(InstanceDigest.INSTANCE_ID)),
+                            cursor.getString(cursor.getColumnIndex(InstanceDigest.DIGEST)),
+                            cursor.getLong(cursor.getColumnIndex(InstanceDigest.SIZE)),
+                            cursor.getLong(cursor.getColumnIndex(InstanceDigest.LAST_MODIFIED))));
+                }
+            }
+        }
+        return digests;
+    }
+}
@@ -0,0 +1,45 @@
+package org.odk.share.dto;
+
+/**
+ * Content digest of a single file, kept with the size and modification date it was computed
+ * for, so a cached digest is only reused while the file is unchanged.
+ */
+public class FileDigest {
+    public static final String ID = "_id";
+    public static final String PATH = "path";
+    public static final String DIGEST = "digest";
+    public static final String SIZE = "size";
+    public static final String LAST_MODIFIED = "lastModified";
+
+    private String path;
+    private String digest;
+    private long size;
+    private long lastModified;
+
+    public FileDigest(String path, String digest, long size, long lastModified) {
+        this.path = path;
+        this.digest = digest;
+        this.size = size;
+        this.lastModified = lastModified;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public String getDigest() {
+        return digest;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    public boolean matches(long size, long lastModified) {
+        return this.size == size && this.lastModified == lastModified;
+    }
+}
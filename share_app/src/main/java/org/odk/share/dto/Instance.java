@@ -18,6 +18,7 @@ package org.odk.share.dto;
 
 public class Instance {
 
+    private Long id;
     private String displayName;
     private String submissionUri;
     private String canEditWhenComplete;
@@ -30,6 +31,7 @@ public class Instance {
     private Long deletedDate;
 
     private Instance(Builder builder) {
+        id = builder.id;
         displayName = builder.displayName;
         submissionUri = builder.submissionUri;
         canEditWhenComplete = builder.canEditWhenComplete;
@@ -43,6 +45,7 @@ public class Instance {
     }
 
     public static class Builder {
+        private Long id;
         private String displayName;
         private String submissionUri;
         private String canEditWhenComplete;
@@ -54,6 +57,11 @@ public class Instance {
         private String displaySubtext;
         private Long deletedDate;
 
+        public Builder id(Long id) {
+            this.id = id;
+            return this;
+        }
+
         public Builder displayName(String displayName) {
             this.displayName = displayName;
             return this;
@@ -109,6 +117,10 @@ public class Instance {
         }
     }
 
+    public Long getId() {
+        return id;
+    }
+
     public String getDisplayName() {
         return displayName;
     }
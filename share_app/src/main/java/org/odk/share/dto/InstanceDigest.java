@@ -0,0 +1,49 @@
+package org.odk.share.dto;
+
+/**
+ * Content digest of an instance: its xml and attachments. The size and last modification
+ * date of the files are kept with the digest, so a cached digest is only reused while the
+ * instance is unchanged.
+ */
+public class InstanceDigest {
+    public static final String ID = "_id";
+    public static final String INSTANCE_ID = "instanceId";
+    public static final String DIGEST = "digest";
+    public static final String SIZE = "size";
+    public static final String LAST_MODIFIED = "lastModified";
+
+    private Long instanceId;
+    private String digest;
+    private long size;
+    private long lastModified;
+
+    public InstanceDigest(Long instanceId, String digest, long size, long lastModified) {
+        this.instanceId = instanceId;
+        this.digest = digest;
+        this.size = size;
+        this.lastModified = lastModified;
+    }
+
+    public Long getInstanceId() {
+        return instanceId;
+    }
+
+    public String getDigest() {
+        return digest;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * Whether this digest still describes files of the given total size and modification date.
+     */
+    public boolean matches(long size, long lastModified) {
+        return this.size == size && this.lastModified == lastModified;
+    }
+}
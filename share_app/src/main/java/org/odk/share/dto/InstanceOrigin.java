@@ -0,0 +1,31 @@
+package org.odk.share.dto;
+
+/**
+ * Where a received instance came from: the install id of the sender and the id the instance
+ * has there. A later revision of the same instance arrives with the same origin.
+ */
+public class InstanceOrigin {
+    public static final String ID = "_id";
+    public static final String INSTANCE_ID = "instanceId";
+    public static final String ORIGIN = "origin";
+
+    private long instanceId;
+    private String origin;
+
+    public InstanceOrigin(long instanceId, String origin) {
+        this.instanceId = instanceId;
+        this.origin = origin;
+    }
+
+    public static String getOrigin(String installId, String senderInstanceId) {
+        return installId + "/" + senderInstanceId;
+    }
+
+    public long getInstanceId() {
+        return instanceId;
+    }
+
+    public String getOrigin() {
+        return origin;
+    }
+}
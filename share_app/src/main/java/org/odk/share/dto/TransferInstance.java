@@ -12,14 +12,15 @@ public class TransferInstance {
     public static final String TRANSFER_STATUS = "transferStatus";
     public static final String LAST_STATUS_CHANGE_DATE = "lastStatusChangeDate";
 
-    public static final String STATUS_FORM_RECEIVE = "receive";
-    public static final String STATUS_FORM_SENT = "sent";
+    // stored as integers, so the status index stays small
+    public static final int STATUS_FORM_RECEIVE = 1;
+    public static final int STATUS_FORM_SENT = 2;
 
     private Long id;
     private int isReviewed;
     private String instructions;
     private Long instanceId;
-    private String transferStatus;
+    private int transferStatus;
     private Long lastStatusChangeDate;
     private Instance instance;
 
@@ -63,11 +64,11 @@ public class TransferInstance {
         this.instanceId = instanceId;
     }
 
-    public String getTransferStatus() {
+    public int getTransferStatus() {
         return transferStatus;
     }
 
-    public void setTransferStatus(String transferStatus) {
+    public void setTransferStatus(int transferStatus) {
         this.transferStatus = transferStatus;
     }
 
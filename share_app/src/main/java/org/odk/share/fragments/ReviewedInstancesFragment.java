@@ -1,9 +1,14 @@
 package org.odk.share.fragments;
 
+import android.content.Context;
+import android.database.ContentObserver;
 import android.database.Cursor;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.support.annotation.NonNull;
 import android.support.v4.app.Fragment;
+import android.support.v4.util.Pair;
 import android.support.v7.widget.LinearLayoutManager;
 import android.support.v7.widget.RecyclerView;
 import android.view.LayoutInflater;
@@ -16,20 +21,26 @@ import android.widget.TextView;
 
 import org.odk.share.R;
 import org.odk.share.adapters.TransferInstanceAdapter;
-import org.odk.share.dao.InstancesDao;
+import org.odk.share.application.Share;
 import org.odk.share.dao.TransferDao;
-import org.odk.share.dto.Instance;
+import org.odk.share.database.InstanceMirror;
 import org.odk.share.dto.TransferInstance;
-import org.odk.share.provider.InstanceProviderAPI;
+import org.odk.share.provider.TransferProvider;
+import org.odk.share.rx.schedulers.BaseSchedulerProvider;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 
+import javax.inject.Inject;
+
 import butterknife.BindView;
 import butterknife.ButterKnife;
 import butterknife.OnClick;
+import io.reactivex.Single;
+import io.reactivex.disposables.CompositeDisposable;
+import io.reactivex.disposables.Disposable;
+import timber.log.Timber;
 
 import static org.odk.share.activities.MainActivity.FORM_DISPLAY_NAME;
 import static org.odk.share.activities.MainActivity.FORM_ID;
@@ -57,11 +68,21 @@ public class ReviewedInstancesFragment extends Fragment {
     @BindView(R.id.buttonholder)
     LinearLayout buttonLayout;
 
-    HashMap<Long, Instance> instanceMap;
-
     TransferInstanceAdapter transferInstanceAdapter;
     List<TransferInstance> transferInstanceList;
     LinkedHashSet<Long> selectedInstances;
+    @Inject
+    BaseSchedulerProvider schedulerProvider;
+    private final CompositeDisposable compositeDisposable = new CompositeDisposable();
+    // the load in flight, replaced by a newer one so diffs always start from what is shown
+    private Disposable loading;
+    private final ContentObserver transferObserver = new ContentObserver(
+            new Handler(Looper.getMainLooper())) {
+        @Override
+        public void onChange(boolean selfChange) {
+            loadInstances();
+        }
+    };
     private static final String SELECTED_INSTANCES = "selectedInstances";
 
     @Override
@@ -70,7 +91,6 @@ public class ReviewedInstancesFragment extends Fragment {
         View view = inflater.inflate(R.layout.fragment_instances, container, false);
         ButterKnife.bind(this, view);
 
-        instanceMap = new HashMap<>();
         transferInstanceList = new ArrayList<>();
         selectedInstances = new LinkedHashSet<>();
 
@@ -82,15 +102,40 @@ public class ReviewedInstancesFragment extends Fragment {
         sendButton.setText(getString(R.string.send_forms));
 
         setupAdapter();
-        getInstanceFromDB();
-
-        setEmptyViewVisibility(getString(R.string.no_forms_reviewed,
-                getActivity().getIntent().getStringExtra(FORM_DISPLAY_NAME)));
-        transferInstanceAdapter.notifyDataSetChanged();
 
         return view;
     }
 
+    @Override
+    public void onAttach(Context context) {
+        super.onAttach(context);
+        ((Share) context.getApplicationContext()).getAppComponent().inject(this);
+    }
+
+    /**
+     * Reloads on every return to the tab, since instances may have been edited in Collect,
+     * and while the tab is shown whenever transfers are written.
+     */
+    @Override
+    public void onResume() {
+        super.onResume();
+        getActivity().getContentResolver()
+                .registerContentObserver(TransferProvider.CONTENT_URI, true, transferObserver);
+        loadInstances();
+    }
+
+    @Override
+    public void onPause() {
+        getActivity().getContentResolver().unregisterContentObserver(transferObserver);
+        super.onPause();
+    }
+
+    @Override
+    public void onDestroyView() {
+        compositeDisposable.clear();
+        super.onDestroyView();
+    }
+
     @Override
     public void onActivityCreated(Bundle savedInstanceState) {
         super.onActivityCreated(savedInstanceState);
@@ -105,32 +150,37 @@ public class ReviewedInstancesFragment extends Fragment {
         outState.putSerializable(SELECTED_INSTANCES, selectedInstances);
     }
 
-    private void getInstanceFromDB() {
+    /**
+     * Reads the transfers and diffs them against the rows shown on a background thread, then
+     * rebinds only the rows that changed. A load still running is dropped, its diff would
+     * start from rows about to be replaced.
+     */
+    private void loadInstances() {
         String formVersion = getActivity().getIntent().getStringExtra(FORM_VERSION);
         String formId = getActivity().getIntent().getStringExtra(FORM_ID);
-        String []selectionArgs;
-        String selection;
+        String emptyText = getString(R.string.no_forms_reviewed,
+                getActivity().getIntent().getStringExtra(FORM_DISPLAY_NAME));
+        List<TransferInstance> shown = transferInstanceList;
 
-        if (formVersion == null) {
-            selectionArgs = new String[]{formId};
-            selection = InstanceProviderAPI.InstanceColumns.JR_FORM_ID + "=? AND "
-                    + InstanceProviderAPI.InstanceColumns.JR_VERSION + " IS NULL";
-        } else {
-            selectionArgs = new String[]{formId, formVersion};
-            selection = InstanceProviderAPI.InstanceColumns.JR_FORM_ID + "=? AND "
-                    + InstanceProviderAPI.InstanceColumns.JR_VERSION + "=?";
-        }
-        Cursor cursor = new InstancesDao().getInstancesCursor(selection, selectionArgs);
-        instanceMap = new InstancesDao().getMapFromCursor(cursor);
-
-        Cursor transferCursor = new TransferDao().getReviewedInstancesCursor();
-        List<TransferInstance> transferInstances = new TransferDao().getInstancesFromCursor(transferCursor);
-        for (TransferInstance instance : transferInstances) {
-            if (instanceMap.containsKey(instance.getInstanceId())) {
-                instance.setInstance(instanceMap.get(instance.getInstanceId()));
-                transferInstanceList.add(instance);
-            }
+        if (loading != null) {
+            compositeDisposable.remove(loading);
         }
+        loading = Single.fromCallable(() -> getInstanceFromDB(formId, formVersion))
+                .map(rows -> Pair.create(rows, TransferInstanceAdapter.diff(shown, rows)))
+                .subscribeOn(schedulerProvider.io())
+                .observeOn(schedulerProvider.androidThread())
+                .subscribe(result -> {
+                    transferInstanceList = result.first;
+                    transferInstanceAdapter.setItems(result.first, result.second);
+                    setEmptyViewVisibility(emptyText);
+                }, Timber::e);
+        compositeDisposable.add(loading);
+    }
+
+    private List<TransferInstance> getInstanceFromDB(String formId, String formVersion) {
+        new InstanceMirror().sync();
+        Cursor transferCursor = new TransferDao().getReviewedInstancesCursor(formId, formVersion);
+        return new TransferDao().getInstancesFromCursor(transferCursor);
     }
 
     private void setupAdapter() {
@@ -3,6 +3,9 @@ package org.odk.share.injection.config;
 import android.app.Application;
 
 import org.odk.share.application.Share;
+import org.odk.share.fragments.ReceivedInstancesFragment;
+import org.odk.share.fragments.ReviewedInstancesFragment;
+import org.odk.share.fragments.SentInstancesFragment;
 import org.odk.share.injection.ActivityBuilder;
 import org.odk.share.injection.config.scopes.PerApplication;
 import org.odk.share.services.HotspotService;
@@ -37,6 +40,12 @@ public interface AppComponent extends AndroidInjector<Share> {
 
     void inject(DownloadJob downloadJob);
 
+    void inject(SentInstancesFragment sentInstancesFragment);
+
+    void inject(ReceivedInstancesFragment receivedInstancesFragment);
+
+    void inject(ReviewedInstancesFragment reviewedInstancesFragment);
+
     @Component.Builder
     interface Builder {
 
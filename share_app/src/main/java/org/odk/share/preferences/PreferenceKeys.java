@@ -9,6 +9,12 @@ public class PreferenceKeys {
     public static final String KEY_HOTSPOT_NAME = "hotspot_name";
     public static final String KEY_HOTSPOT_PASSWORD = "hotspot_password";
     public static final String KEY_HOTSPOT_PWD_REQUIRE = "hotspot_pwd_require";
+    public static final String KEY_TRANSFER_STREAMS = "transfer_streams";
+    public static final String KEY_TRANSFER_COMPRESSION = "transfer_compression";
+    public static final String KEY_TRANSFER_RECEIVERS = "transfer_receivers";
+    public static final String KEY_TRANSFER_VERIFY = "transfer_verify";
+    public static final String KEY_TRANSFER_SYNC = "transfer_sync";
+    public static final String KEY_INSTALL_ID = "install_id";
 
     private PreferenceKeys() {
 
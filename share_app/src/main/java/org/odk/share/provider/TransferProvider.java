@@ -1,8 +1,11 @@
 package org.odk.share.provider;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.SQLException;
@@ -16,6 +19,8 @@ import org.odk.share.application.Share;
 import org.odk.share.database.ShareDatabaseHelper;
 import org.odk.share.dto.TransferInstance;
 
+import java.util.ArrayList;
+
 import static org.odk.share.database.ShareDatabaseHelper.SHARE_TABLE_NAME;
 
 /**
@@ -33,6 +38,8 @@ public class TransferProvider extends ContentProvider {
     private static final UriMatcher sUriMatcher;
 
     private ShareDatabaseHelper databaseHelper;
+    // set while a batch runs on the current thread, its changes are notified once at the end
+    private final ThreadLocal<Boolean> inBatch = new ThreadLocal<>();
 
     private ShareDatabaseHelper getDbHelper() {
 
@@ -46,7 +53,7 @@ public class TransferProvider extends ContentProvider {
         if (databaseHelper != null) {
             return databaseHelper;
         }
-        databaseHelper = new ShareDatabaseHelper(getContext());
+        databaseHelper = ShareDatabaseHelper.getInstance(getContext());
         return databaseHelper;
     }
 
@@ -99,26 +106,10 @@ public class TransferProvider extends ContentProvider {
 
         ShareDatabaseHelper shareDatabaseHelper = getDbHelper();
         if (shareDatabaseHelper != null) {
-            ContentValues values;
-            if (initialValues != null) {
-                values = new ContentValues(initialValues);
-            } else {
-                values = new ContentValues();
-            }
-            Long now = System.currentTimeMillis();
-
-            if (!values.containsKey(TransferInstance.LAST_STATUS_CHANGE_DATE)) {
-                values.put(TransferInstance.LAST_STATUS_CHANGE_DATE, now);
-            }
-
-            if (!values.containsKey(TransferInstance.TRANSFER_STATUS)) {
-                values.put(TransferInstance.TRANSFER_STATUS, TransferInstance.STATUS_FORM_SENT);
-            }
-
-            long rowId = shareDatabaseHelper.getWritableDatabase().insert(SHARE_TABLE_NAME, null, values);
+            long rowId = insertRow(shareDatabaseHelper.getWritableDatabase(), initialValues);
             if (rowId > 0) {
                 Uri instanceUri = ContentUris.withAppendedId(CONTENT_URI, rowId);
-                getContext().getContentResolver().notifyChange(instanceUri, null);
+                notifyChange(instanceUri);
                 return instanceUri;
             }
         }
@@ -126,6 +117,95 @@ public class TransferProvider extends ContentProvider {
         throw new SQLException("Failed to insert row into " + uri);
     }
 
+    /**
+     * Inserts all rows in one transaction and notifies observers once for all of them.
+     */
+    @Override
+    public int bulkInsert(@NonNull Uri uri, @NonNull ContentValues[] rows) {
+        if (sUriMatcher.match(uri) != TRANSFER) {
+            throw new IllegalArgumentException("Unknown URI " + uri);
+        }
+
+        ShareDatabaseHelper shareDatabaseHelper = getDbHelper();
+        if (shareDatabaseHelper == null) {
+            throw new SQLException("Failed to insert rows into " + uri);
+        }
+
+        SQLiteDatabase db = shareDatabaseHelper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (ContentValues values : rows) {
+                if (insertRow(db, values) <= 0) {
+                    throw new SQLException("Failed to insert row into " + uri);
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        notifyChange(CONTENT_URI);
+        return rows.length;
+    }
+
+    /**
+     * Applies the operations in one transaction, so they all succeed or none does, and
+     * notifies observers once for the whole batch rather than once per operation.
+     */
+    @NonNull
+    @Override
+    public ContentProviderResult[] applyBatch(
+            @NonNull ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        ShareDatabaseHelper shareDatabaseHelper = getDbHelper();
+        if (shareDatabaseHelper == null) {
+            throw new OperationApplicationException("Transfers database is not available");
+        }
+
+        SQLiteDatabase db = shareDatabaseHelper.getWritableDatabase();
+        ContentProviderResult[] results;
+        inBatch.set(true);
+        db.beginTransaction();
+        try {
+            results = super.applyBatch(operations);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            inBatch.remove();
+        }
+        notifyChange(CONTENT_URI);
+        return results;
+    }
+
+    private long insertRow(SQLiteDatabase db, ContentValues initialValues) {
+        ContentValues values;
+        if (initialValues != null) {
+            values = new ContentValues(initialValues);
+        } else {
+            values = new ContentValues();
+        }
+        Long now = System.currentTimeMillis();
+
+        if (!values.containsKey(TransferInstance.REVIEWED)) {
+            values.put(TransferInstance.REVIEWED, false);
+        }
+
+        if (!values.containsKey(TransferInstance.LAST_STATUS_CHANGE_DATE)) {
+            values.put(TransferInstance.LAST_STATUS_CHANGE_DATE, now);
+        }
+
+        if (!values.containsKey(TransferInstance.TRANSFER_STATUS)) {
+            values.put(TransferInstance.TRANSFER_STATUS, TransferInstance.STATUS_FORM_SENT);
+        }
+
+        return db.insert(SHARE_TABLE_NAME, null, values);
+    }
+
+    private void notifyChange(Uri uri) {
+        if (inBatch.get() == null) {
+            getContext().getContentResolver().notifyChange(uri, null);
+        }
+    }
+
     @Override
     public int delete(@NonNull Uri uri, String where, String[] whereArgs) {
         int count = 0;
@@ -153,7 +233,7 @@ public class TransferProvider extends ContentProvider {
                     throw new IllegalArgumentException("Unknown URI " + uri);
             }
 
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChange(uri);
         }
 
         return count;
@@ -186,7 +266,7 @@ public class TransferProvider extends ContentProvider {
                     throw new IllegalArgumentException("Unknown URI " + uri);
             }
 
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChange(uri);
         }
 
         return count;
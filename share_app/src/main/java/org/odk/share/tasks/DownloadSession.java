@@ -0,0 +1,978 @@
+package org.odk.share.tasks;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+
+import org.odk.share.dao.FormsDao;
+import org.odk.share.dao.InstancesDao;
+import org.odk.share.database.ShareDatabaseHelper;
+import org.odk.share.dto.InstanceDigest;
+import org.odk.share.dto.InstanceOrigin;
+import org.odk.share.events.DownloadEvent;
+import org.odk.share.provider.FormsProviderAPI;
+import org.odk.share.provider.InstanceProviderAPI;
+import org.odk.share.rx.RxEventBus;
+import org.odk.share.transfer.BlockSignature;
+import org.odk.share.transfer.BufferPool;
+import org.odk.share.transfer.FileDigestCache;
+import org.odk.share.transfer.FileReceiver;
+import org.odk.share.transfer.FrameReader;
+import org.odk.share.transfer.FrameWriter;
+import org.odk.share.transfer.LinkStats;
+import org.odk.share.transfer.LinkTuning;
+import org.odk.share.transfer.Protocol;
+import org.odk.share.transfer.SessionCheckpoint;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import timber.log.Timber;
+
+import static org.odk.share.application.Share.FORMS_PATH;
+import static org.odk.share.application.Share.INSTANCES_PATH;
+import static org.odk.share.dto.TransferInstance.INSTANCE_ID;
+import static org.odk.share.dto.TransferInstance.STATUS_FORM_RECEIVE;
+import static org.odk.share.dto.TransferInstance.TRANSFER_STATUS;
+import static org.odk.share.provider.InstanceProviderAPI.InstanceColumns.CAN_EDIT_WHEN_COMPLETE;
+import static org.odk.share.provider.InstanceProviderAPI.InstanceColumns.DISPLAY_NAME;
+import static org.odk.share.provider.InstanceProviderAPI.InstanceColumns.INSTANCE_FILE_PATH;
+import static org.odk.share.provider.InstanceProviderAPI.InstanceColumns.JR_FORM_ID;
+import static org.odk.share.provider.InstanceProviderAPI.InstanceColumns.JR_VERSION;
+import static org.odk.share.provider.InstanceProviderAPI.InstanceColumns.LAST_STATUS_CHANGE_DATE;
+import static org.odk.share.provider.InstanceProviderAPI.InstanceColumns.STATUS;
+import static org.odk.share.provider.InstanceProviderAPI.InstanceColumns.SUBMISSION_URI;
+
+/**
+ * Receives what one sender offers over a connection that already went through the
+ * handshake: answers the offer with what is missing here, follows the plan and saves the
+ * forms and instances that arrive on its streams. It is the counterpart of
+ * {@link UploadSession}, and either end of a sync connection can run it.
+ */
+class DownloadSession {
+
+    private static final int MAX_QUERY_ARGS = 500;
+    // received instances saved with one insert into Collect and one share transaction
+    private static final int COMMIT_GROUP = 50;
+
+    private final Context context;
+    private final RxEventBus rxEventBus;
+    private final Socket socket;
+    private final FileReceiver receiver;
+    private final FrameReader reader;
+    private final FrameWriter writer;
+    // optional protocol features both peers support
+    private final long capabilities;
+    // where additional streams connect to, null when only the first stream can be used
+    private final InetSocketAddress peer;
+    private final BufferPool bufferPool;
+    private int total;
+    private final AtomicInteger progress = new AtomicInteger();
+    private final List<Socket> streams = Collections.synchronizedList(new ArrayList<>());
+    private SessionCheckpoint checkpoint;
+    // content digests advertised by the sender, by sender instance id
+    private final Map<String, String> digests = new HashMap<>();
+    // media of other versions of each missing form, by content digest
+    private final Map<Integer, Map<String, File>> localMedia = new HashMap<>();
+    // install id of the sender, names the origin of what it sends
+    private String senderInstall;
+    // instances held here in an older revision, by sender instance id
+    private final Map<String, Revision> revisions = new HashMap<>();
+    // instances whose files are complete but that are not saved yet
+    private final List<ReceivedInstance> received = new ArrayList<>();
+
+    DownloadSession(Context context, RxEventBus rxEventBus, Socket socket, FileReceiver receiver,
+                    FrameWriter writer, long capabilities, InetSocketAddress peer,
+                    BufferPool bufferPool) {
+        this.context = context;
+        this.rxEventBus = rxEventBus;
+        this.socket = socket;
+        this.receiver = receiver;
+        this.writer = writer;
+        this.capabilities = capabilities;
+        this.peer = peer;
+        this.bufferPool = bufferPool;
+        reader = receiver.getReader();
+    }
+
+    /**
+     * Number of instances held here at the end, whether they were received now or before.
+     */
+    int getProgress() {
+        return progress.get();
+    }
+
+    void run() throws IOException {
+        if ((capabilities & Protocol.CAP_TUNING) != 0) {
+            LinkStats.answer(writer, reader);
+        }
+
+        reader.expect(Protocol.OFFER);
+        total = reader.readVarInt();
+        int num = reader.readVarInt();
+        Timber.d("Number of forms : %d", num);
+
+        String[] formIds = new String[num];
+        String[] formVersions = new String[num];
+        writer.begin(Protocol.ANSWER);
+        negotiateForms(formIds, formVersions);
+        if ((capabilities & Protocol.CAP_RESUME) != 0) {
+            resumeSession();
+        }
+        if ((capabilities & Protocol.CAP_DEDUP) != 0) {
+            findHeldInstances();
+        }
+        writer.end();
+        writer.flush();
+
+        reader.expect(Protocol.PLAN);
+        int streamCount = reader.readVarInt();
+        long token = reader.readVarLong();
+        boolean verify = (capabilities & Protocol.CAP_CHECKSUM) != 0 && reader.readBoolean();
+        LinkTuning tuning = LinkTuning.DEFAULT;
+        if ((capabilities & Protocol.CAP_TUNING) != 0) {
+            int socketBufferSize = reader.readVarInt();
+            int connectTimeout = reader.readVarInt();
+            tuning = new LinkTuning(socketBufferSize, tuning.getCopyBufferSize(),
+                    connectTimeout);
+            tuning.apply(socket);
+        }
+        LinkTuning.setLast(tuning);
+        Timber.d("Receiving over %d stream(s) with %s", streamCount, tuning);
+        List<FileReceiver> receivers = openStreams(receiver, streamCount, token, tuning);
+        for (FileReceiver stream : receivers) {
+            stream.setVerify(verify);
+            stream.setAcknowledge((capabilities & Protocol.CAP_ACK) != 0);
+        }
+        boolean complete = false;
+        try {
+            receiveStreams(formIds, formVersions, receivers);
+            complete = true;
+        } finally {
+            for (FileReceiver stream : receivers) {
+                stream.close();
+            }
+            if (!complete) {
+                // instances that passed verification before a failure are whole and kept,
+                // the sender finds them held here on its next attempt
+                flush(false);
+            }
+        }
+        flush(true);
+        if (checkpoint != null) {
+            checkpoint.delete();
+        }
+    }
+
+    /**
+     * Closes the additional streams. The first one belongs to the caller.
+     */
+    void close() throws IOException {
+        synchronized (streams) {
+            for (Socket stream : streams) {
+                stream.close();
+            }
+            streams.clear();
+        }
+    }
+
+    /**
+     * Reads every (formId, formVersion) pair of the offer and answers for all of them in the
+     * same reply, so the data phase can be streamed without further round trips.
+     */
+    private boolean[] negotiateForms(String[] formIds, String[] formVersions) throws IOException {
+        boolean[] formExists = new boolean[formIds.length];
+        for (int i = 0; i < formIds.length; i++) {
+            formIds[i] = reader.readString();
+            formVersions[i] = reader.readString();
+        }
+
+        for (int i = 0; i < formIds.length; i++) {
+            formExists[i] = isFormExits(formIds[i], formVersions[i]);
+            Timber.d("Form %s %s exists %s", formIds[i], formVersions[i], formExists[i]);
+            writer.writeBoolean(formExists[i]);
+        }
+
+        if ((capabilities & Protocol.CAP_MEDIA_REUSE) != 0) {
+            for (int i = 0; i < formIds.length; i++) {
+                if (!formExists[i]) {
+                    Map<String, File> media = getLocalMedia(formIds[i]);
+                    localMedia.put(i, media);
+                    writer.writeVarInt(media.size());
+                    for (String digest : media.keySet()) {
+                        writer.writeString(digest);
+                    }
+                }
+            }
+        }
+        return formExists;
+    }
+
+    /**
+     * Media files of every version of the form already stored here, by content digest. A new
+     * version usually shares most of its media with the previous one.
+     */
+    private Map<String, File> getLocalMedia(String formId) {
+        List<File> files = new ArrayList<>();
+        try (Cursor cursor = new FormsDao().getFormsCursorForFormId(formId)) {
+            while (cursor != null && cursor.moveToNext()) {
+                String mediaPath = cursor.getString(
+                        cursor.getColumnIndex(FormsProviderAPI.FormsColumns.FORM_MEDIA_PATH));
+                File[] mediaFiles = mediaPath == null ? null : new File(mediaPath).listFiles();
+                if (mediaFiles != null) {
+                    for (File file : mediaFiles) {
+                        if (file.isFile()) {
+                            files.add(file);
+                        }
+                    }
+                }
+            }
+        }
+
+        Map<String, File> media = new HashMap<>();
+        for (Map.Entry<String, String> digest
+                : new FileDigestCache(context).getDigests(files).entrySet()) {
+            media.put(digest.getValue(), new File(digest.getKey()));
+        }
+        return media;
+    }
+
+    /**
+     * Reads the session id sent along with the forms and tells the sender what an earlier
+     * attempt of the same session left behind: the instances that were saved, and the files
+     * of unfinished instances with the number of bytes already on disk. The digest of each
+     * unfinished instance tells the sender whether those bytes are still of its content.
+     */
+    private void resumeSession() throws IOException {
+        String sessionId = reader.readString();
+        SessionCheckpoint.removeStale();
+        checkpoint = SessionCheckpoint.load(sessionId);
+
+        Set<String> completed = checkpoint.getCompleted();
+        writer.writeVarInt(completed.size());
+        for (String id : completed) {
+            writer.writeString(id);
+        }
+        progress.set(completed.size());
+
+        Map<String, String> partial = checkpoint.getPartial();
+        writer.writeVarInt(partial.size());
+        for (Map.Entry<String, String> entry : partial.entrySet()) {
+            writer.writeString(entry.getKey());
+            writer.writeString(checkpoint.getDigest(entry.getKey()));
+            File[] files = new File(entry.getValue()).listFiles();
+            if (files == null) {
+                files = new File[0];
+            }
+            writer.writeVarInt(files.length);
+            for (File file : files) {
+                writer.writeString(file.getName());
+                writer.writeVarLong(file.length());
+            }
+        }
+        Timber.d("Session %s: %d received, %d partial", sessionId, completed.size(), partial.size());
+    }
+
+    /**
+     * Reads the content digests advertised by the sender and answers with the instances that
+     * are already stored here with the same content, so the sender does not send them again.
+     */
+    private void findHeldInstances() throws IOException {
+        int numDigests = reader.readVarInt();
+        while (numDigests-- > 0) {
+            String id = reader.readString();
+            digests.put(id, reader.readString());
+        }
+        if ((capabilities & Protocol.CAP_DELTA) != 0) {
+            senderInstall = reader.readString();
+        }
+
+        Map<String, Long> local = ShareDatabaseHelper.getInstance(context)
+                .getInstancesByDigest(digests.values());
+        Map<Long, String> existing = getInstancePaths(local.values());
+
+        Set<String> held = new HashSet<>();
+        for (Map.Entry<String, String> digest : digests.entrySet()) {
+            Long localId = local.get(digest.getValue());
+            if (localId != null && existing.containsKey(localId)) {
+                held.add(digest.getKey());
+            }
+        }
+
+        Set<String> completed = checkpoint == null
+                ? Collections.<String>emptySet() : checkpoint.getCompleted();
+        writer.writeVarInt(held.size());
+        for (String id : held) {
+            writer.writeString(id);
+            if (!completed.contains(id)) {
+                progress.incrementAndGet();
+            }
+        }
+        Timber.d("%d of %d instances already held", held.size(), digests.size());
+
+        if ((capabilities & Protocol.CAP_DELTA) != 0) {
+            findRevisions(held);
+        }
+    }
+
+    /**
+     * Answers with the block signatures of the files of every instance that was received
+     * from the same sender under the same id before, but that is not held with its current
+     * content. The sender then only sends the blocks that changed since.
+     */
+    private void findRevisions(Set<String> held) throws IOException {
+        Map<String, String> origins = new HashMap<>();
+        for (String id : digests.keySet()) {
+            if (!held.contains(id)) {
+                origins.put(InstanceOrigin.getOrigin(senderInstall, id), id);
+            }
+        }
+        Map<String, Long> local = ShareDatabaseHelper.getInstance(context)
+                .getInstancesByOrigin(origins.keySet());
+        Map<Long, String> paths = getInstancePaths(local.values());
+
+        Map<String, Map<String, BlockSignature>> signatures = new HashMap<>();
+        for (Map.Entry<String, Long> origin : local.entrySet()) {
+            String path = paths.get(origin.getValue());
+            File[] files = path == null ? null : new File(path).getParentFile().listFiles();
+            if (files == null) {
+                continue;
+            }
+            try {
+                Map<String, BlockSignature> fileSignatures = new HashMap<>();
+                for (File file : files) {
+                    if (file.isFile()) {
+                        fileSignatures.put(file.getName(), BlockSignature.compute(file));
+                    }
+                }
+                String senderId = origins.get(origin.getKey());
+                signatures.put(senderId, fileSignatures);
+                revisions.put(senderId, new Revision(origin.getValue(),
+                        new File(path).getParent()));
+            } catch (IOException e) {
+                Timber.e(e);
+            }
+        }
+
+        writer.writeVarInt(signatures.size());
+        for (Map.Entry<String, Map<String, BlockSignature>> revision : signatures.entrySet()) {
+            writer.writeString(revision.getKey());
+            writer.writeVarInt(revision.getValue().size());
+            for (Map.Entry<String, BlockSignature> file : revision.getValue().entrySet()) {
+                writer.writeString(file.getKey());
+                file.getValue().write(writer);
+            }
+        }
+        Timber.d("%d instances held in an older revision", revisions.size());
+    }
+
+    /**
+     * Instance file paths of those of the given instances that are still in Collect. Digests
+     * and origins outlive the instances they describe.
+     */
+    private Map<Long, String> getInstancePaths(Collection<Long> ids) {
+        Map<Long, String> existing = new HashMap<>();
+        List<Long> candidates = new ArrayList<>(ids);
+        for (int start = 0; start < candidates.size(); start += MAX_QUERY_ARGS) {
+            List<Long> chunk = candidates.subList(start,
+                    Math.min(candidates.size(), start + MAX_QUERY_ARGS));
+            StringBuilder selection = new StringBuilder(InstanceProviderAPI.InstanceColumns._ID + " IN (");
+            String[] selectionArgs = new String[chunk.size()];
+            for (int i = 0; i < chunk.size(); i++) {
+                selection.append(i > 0 ? ",?" : "?");
+                selectionArgs[i] = String.valueOf(chunk.get(i));
+            }
+            selection.append(")");
+
+            try (Cursor cursor = new InstancesDao().getInstancesCursor(selection.toString(), selectionArgs)) {
+                while (cursor != null && cursor.moveToNext()) {
+                    existing.put(cursor.getLong(
+                            cursor.getColumnIndex(InstanceProviderAPI.InstanceColumns._ID)),
+                            cursor.getString(cursor.getColumnIndex(INSTANCE_FILE_PATH)));
+                }
+            }
+        }
+        return existing;
+    }
+
+    /**
+     * Opens the additional connections requested by the sender. Each one joins the session
+     * with the token from the plan, since the sender may be serving other receivers on the
+     * same port. The first stream is always the connection used for the negotiation.
+     * Without a peer address, as when the roles are swapped on a sync, there is only that one.
+     */
+    private List<FileReceiver> openStreams(FileReceiver receiver, int streamCount, long token,
+                                           LinkTuning tuning) throws IOException {
+        List<FileReceiver> receivers = new ArrayList<>();
+        receivers.add(receiver);
+
+        if (streamCount > 1 && peer == null) {
+            throw new ProtocolException("Cannot open " + streamCount + " streams to the sender");
+        }
+        for (int i = 1; i < streamCount; i++) {
+            Socket stream = SocketChannel.open().socket();
+            streams.add(stream);
+            tuning.apply(stream);
+            stream.connect(peer, tuning.getConnectTimeout());
+            FrameWriter join = new FrameWriter(new BufferedOutputStream(stream.getOutputStream()));
+            join.begin(Protocol.JOIN);
+            join.writeVarLong(token);
+            join.end();
+            join.flush();
+            receivers.add(new FileReceiver(stream, bufferPool));
+        }
+        return receivers;
+    }
+
+    private void receiveStreams(String[] formIds, String[] formVersions,
+                                List<FileReceiver> receivers) throws IOException {
+        if (receivers.size() == 1) {
+            receiveUnits(receivers.get(0), formIds, formVersions);
+            return;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(receivers.size());
+        try {
+            List<Future<Void>> futures = new ArrayList<>();
+            for (FileReceiver receiver : receivers) {
+                futures.add(executor.submit(() -> {
+                    receiveUnits(receiver, formIds, formVersions);
+                    return null;
+                }));
+            }
+
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Reads the parts of the form groups that the sender assigned to one stream. Each part
+     * starts with a unit frame naming its group, followed by the form if it was missing and
+     * the instances. The stream ends with an end frame. When the stream verifies its files,
+     * its instances are only queued to be saved once all of them passed, and are dropped if
+     * some never do.
+     */
+    private void receiveUnits(FileReceiver receiver, String[] formIds, String[] formVersions) throws IOException {
+        FrameReader in = receiver.getReader();
+        List<ReceivedInstance> pending = new ArrayList<>();
+        int groupIndex = -1;
+        while (true) {
+            int type = in.next();
+            if (type == Protocol.END) {
+                try {
+                    receiver.finish();
+                } catch (IOException e) {
+                    discard(pending);
+                    throw e;
+                }
+                queue(pending);
+                return;
+            } else if (type == Protocol.UNIT) {
+                groupIndex = in.readVarInt();
+                if (groupIndex >= formIds.length) {
+                    throw new ProtocolException("Unknown form group " + groupIndex);
+                }
+                Timber.d("Downloading form : %s %s", formIds[groupIndex], formVersions[groupIndex]);
+            } else if (type == Protocol.FORM && groupIndex != -1) {
+                readForm(receiver, groupIndex);
+            } else if (type == Protocol.INSTANCE && groupIndex != -1) {
+                readInstance(receiver, pending, formIds[groupIndex], formVersions[groupIndex]);
+            } else if (type == Protocol.BATCH && groupIndex != -1) {
+                readBatch(receiver, pending, formIds[groupIndex], formVersions[groupIndex]);
+            } else {
+                throw new ProtocolException("Unexpected frame " + type);
+            }
+        }
+    }
+
+    private boolean isFormExits(String formId, String formVersion) {
+        String[] selectionArgs;
+        String selection;
+
+        if (formVersion == null) {
+            selectionArgs = new String[]{formId};
+            selection = FormsProviderAPI.FormsColumns.JR_FORM_ID + "=? AND "
+                    + FormsProviderAPI.FormsColumns.JR_VERSION + " IS NULL";
+        } else {
+            selectionArgs = new String[]{formId, formVersion};
+            selection = FormsProviderAPI.FormsColumns.JR_FORM_ID + "=? AND "
+                    + FormsProviderAPI.FormsColumns.JR_VERSION + "=?";
+        }
+
+        try (Cursor cursor = new FormsDao().getFormsCursor(null, selection, selectionArgs, null)) {
+            return cursor != null && cursor.getCount() > 0;
+        }
+    }
+
+    private void readForm(FileReceiver receiver, int groupIndex) throws IOException {
+        FrameReader in = receiver.getReader();
+        String displayName = in.readString();
+        String formId = in.readString();
+        String formVersion = in.readString();
+        String submissionUri = in.readString();
+        int numOfRes = in.readVarInt();
+
+        Timber.d(displayName + " " + formId + " " + formVersion + " " + submissionUri);
+        String formName = receiver.receive(FORMS_PATH);
+        String formMediaPath = FORMS_PATH + "/" + displayName + "-media";
+        while (numOfRes-- > 0) {
+            int type = in.next();
+            if (type == Protocol.MEDIA_REUSE) {
+                String name = in.readString();
+                copyMedia(groupIndex, name, in.readString(), formMediaPath);
+            } else {
+                receiver.receiveFrame(formMediaPath);
+            }
+        }
+
+        // Add row in forms db
+        ContentValues values = new ContentValues();
+        values.put(FormsProviderAPI.FormsColumns.FORM_FILE_PATH, FORMS_PATH + "/" + formName);
+        values.put(FormsProviderAPI.FormsColumns.DISPLAY_NAME, displayName);
+        values.put(FormsProviderAPI.FormsColumns.JR_FORM_ID, formId);
+        values.put(FormsProviderAPI.FormsColumns.JR_VERSION, formVersion);
+        values.put(FormsProviderAPI.FormsColumns.SUBMISSION_URI, submissionUri);
+        values.put(FormsProviderAPI.FormsColumns.FORM_MEDIA_PATH, formMediaPath);
+        new FormsDao().saveForm(values);
+    }
+
+    private void readInstance(FileReceiver receiver, List<ReceivedInstance> pending,
+                              String formId, String formVersion) throws IOException {
+        FrameReader in = receiver.getReader();
+        // publish current progress
+        rxEventBus.post(new DownloadEvent(DownloadEvent.Status.DOWNLOADING, progress.incrementAndGet(), total));
+        String senderId = in.readString();
+        String displayName = in.readString();
+        String submissionUri = in.readString();
+        int numRes = in.readVarInt();
+
+        Revision revision = revisions.get(senderId);
+        if (revision != null) {
+            readRevision(receiver, pending, senderId, displayName, submissionUri, revision,
+                    numRes);
+            return;
+        }
+
+        // an instance cut off by an earlier attempt is continued in its own directory
+        String digest = digests.get(senderId);
+        String path = checkpoint == null ? null : checkpoint.getDirectory(senderId);
+        boolean continued = path != null;
+        if (path == null) {
+            path = createInstanceDir(formId);
+            if (checkpoint != null) {
+                checkpoint.start(senderId, path, digest);
+            }
+        } else if (digest != null && !digest.equals(checkpoint.getDigest(senderId))) {
+            // changed since, so it is sent whole and a later attempt continues the new content
+            checkpoint.start(senderId, path, digest);
+        }
+        Set<String> names = new HashSet<>();
+        String instanceFilePath = receiver.receive(path);
+        names.add(instanceFilePath);
+
+        while (--numRes > 0) {
+            names.add(receiver.receive(path));
+        }
+        if (continued) {
+            removeOtherFiles(path, names);
+        }
+
+        // Add row in instances table
+        ContentValues values = new ContentValues();
+        values.put(DISPLAY_NAME, displayName);
+        values.put(INSTANCE_FILE_PATH, path + "/" + instanceFilePath);
+        values.put(STATUS, InstanceProviderAPI.STATUS_COMPLETE);
+        values.put(CAN_EDIT_WHEN_COMPLETE, "true");
+        values.put(SUBMISSION_URI, submissionUri);
+        values.put(JR_FORM_ID, formId);
+        values.put(JR_VERSION, formVersion);
+        hold(receiver, pending,
+                Collections.singletonList(new ReceivedInstance(senderId, values, path, receiver,
+                        null)));
+    }
+
+    /**
+     * Brings an instance held in an older revision up to date in place. Its files arrive
+     * whole or as deltas against the old ones, and files the new revision no longer has are
+     * removed. It is then saved like a received instance, except that its Collect row is
+     * updated rather than inserted.
+     */
+    private void readRevision(FileReceiver receiver, List<ReceivedInstance> pending,
+                              String senderId, String displayName, String submissionUri,
+                              Revision revision, int numRes) throws IOException {
+        FrameReader in = receiver.getReader();
+        Set<String> names = new HashSet<>();
+        while (numRes-- > 0) {
+            if (in.next() == Protocol.DELTA) {
+                names.add(receiver.receiveDelta(revision.path));
+            } else {
+                names.add(receiver.receiveFrame(revision.path));
+            }
+        }
+
+        removeOtherFiles(revision.path, names);
+
+        // a new status change date also tells the instance mirror that the row changed
+        ContentValues values = new ContentValues();
+        values.put(DISPLAY_NAME, displayName);
+        values.put(SUBMISSION_URI, submissionUri);
+        values.put(STATUS, InstanceProviderAPI.STATUS_COMPLETE);
+        values.put(CAN_EDIT_WHEN_COMPLETE, "true");
+        values.put(LAST_STATUS_CHANGE_DATE, System.currentTimeMillis());
+        hold(receiver, pending, Collections.singletonList(
+                new ReceivedInstance(senderId, values, revision.path, receiver, revision)));
+        Timber.d("Instance %d updated to the new revision", revision.instanceId);
+    }
+
+    /**
+     * Deletes the files of an instance directory that are not part of what was just
+     * received, since an instance may have lost files since the copy held here.
+     */
+    private static void removeOtherFiles(String path, Set<String> names) {
+        File[] files = new File(path).listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isFile() && !names.contains(file.getName())) {
+                    Timber.d("Removed from the new revision %s %s", file.getName(), file.delete());
+                }
+            }
+        }
+    }
+
+    /**
+     * Unpacks a batch of small instances and queues them to be saved together. The content
+     * of their files is either inside the batch frame or follows it as file frames, in the
+     * order of the instances. A batch is never journaled as started, an interrupted one is
+     * simply sent again.
+     */
+    private void readBatch(FileReceiver receiver, List<ReceivedInstance> pending,
+                           String formId, String formVersion) throws IOException {
+        FrameReader in = receiver.getReader();
+        int count = in.readVarInt();
+        boolean inline = in.readBoolean();
+        List<ReceivedInstance> instances = new ArrayList<>();
+        List<Integer> fileCounts = new ArrayList<>();
+        byte[] payload = in.getPayload();
+        while (count-- > 0) {
+            String senderId = in.readString();
+            String displayName = in.readString();
+            String submissionUri = in.readString();
+            int numFiles = in.readVarInt();
+
+            String path = createInstanceDir(formId);
+            String instanceFileName = null;
+            for (int i = 0; inline && i < numFiles; i++) {
+                String name = in.readString();
+                int length = in.readVarInt();
+                int offset = in.readBytes(length);
+                File file = new File(path, name);
+                try (FileOutputStream fos = new FileOutputStream(file)) {
+                    fos.write(payload, offset, length);
+                }
+                if (instanceFileName == null) {
+                    instanceFileName = name;
+                }
+            }
+
+            ContentValues values = new ContentValues();
+            values.put(DISPLAY_NAME, displayName);
+            values.put(INSTANCE_FILE_PATH, path + "/" + instanceFileName);
+            values.put(STATUS, InstanceProviderAPI.STATUS_COMPLETE);
+            values.put(CAN_EDIT_WHEN_COMPLETE, "true");
+            values.put(SUBMISSION_URI, submissionUri);
+            values.put(JR_FORM_ID, formId);
+            values.put(JR_VERSION, formVersion);
+            instances.add(new ReceivedInstance(senderId, values, path, receiver, null));
+            fileCounts.add(numFiles);
+        }
+
+        if (!inline) {
+            for (int i = 0; i < instances.size(); i++) {
+                ReceivedInstance instance = instances.get(i);
+                String instanceFileName = null;
+                for (int j = 0; j < fileCounts.get(i); j++) {
+                    String name = receiver.receive(instance.path);
+                    if (instanceFileName == null) {
+                        instanceFileName = name;
+                    }
+                }
+                instance.values.put(INSTANCE_FILE_PATH, instance.path + "/" + instanceFileName);
+            }
+        }
+
+        hold(receiver, pending, instances);
+        rxEventBus.post(new DownloadEvent(DownloadEvent.Status.DOWNLOADING,
+                progress.addAndGet(instances.size()), total));
+        Timber.d("Batch of %d instances received", instances.size());
+    }
+
+    /**
+     * Copies a media file the sender did not send because the same content is already stored
+     * here for another version of the form.
+     */
+    private void copyMedia(int groupIndex, String name, String digest, String formMediaPath)
+            throws IOException {
+        File source = localMedia.get(groupIndex).get(digest);
+        if (source == null || !source.exists()) {
+            throw new IOException("Media " + name + " is no longer available locally");
+        }
+
+        File dir = new File(formMediaPath);
+        if (!dir.exists()) {
+            Timber.d("Directory created " + dir.getPath() + " " + dir.mkdirs());
+        }
+        File target = new File(dir, name);
+        if (target.getAbsolutePath().equals(source.getAbsolutePath())) {
+            return;
+        }
+
+        try (FileInputStream fis = new FileInputStream(source);
+             FileOutputStream fos = new FileOutputStream(target)) {
+            FileChannel in = fis.getChannel();
+            long position = 0;
+            long size = in.size();
+            while (position < size) {
+                position += in.transferTo(position, size - position, fos.getChannel());
+            }
+        }
+        Timber.d("Media %s copied from %s", name, source.getPath());
+    }
+
+    /**
+     * Creates the directory for a received instance. Instances of the same form can arrive
+     * on several streams or sessions within the same millisecond, so the timestamp is
+     * suffixed when the directory is already taken.
+     */
+    private static synchronized String createInstanceDir(String formId) {
+        String time = new SimpleDateFormat("yyyy-MM-dd_HH-mm-ss-SSS",
+                Locale.ENGLISH).format(Calendar.getInstance().getTime());
+        String path = INSTANCES_PATH + "/" + formId + "_" + time;
+        int suffix = 1;
+        while (new File(path).exists()) {
+            path = INSTANCES_PATH + "/" + formId + "_" + time + "_" + suffix++;
+        }
+        Timber.d("Directory created " + path + " " + new File(path).mkdirs());
+        return path;
+    }
+
+    /**
+     * Instances of a stream that verifies its files wait for the end of the stream in
+     * {@code pending}, the others are queued right away.
+     */
+    private void hold(FileReceiver receiver, List<ReceivedInstance> pending,
+                      List<ReceivedInstance> instances) throws IOException {
+        if (receiver.isVerifying()) {
+            pending.addAll(instances);
+        } else {
+            queue(instances);
+        }
+    }
+
+    /**
+     * Drops the instances of a stream that failed. New instances are deleted with their
+     * directories. A revision keeps the files it was updated with so far, but its new digest
+     * is not saved, so the next session finds it out of date and sends it again.
+     */
+    private static void discard(List<ReceivedInstance> instances) {
+        for (ReceivedInstance instance : instances) {
+            if (instance.revision != null) {
+                continue;
+            }
+            File[] files = new File(instance.path).listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            Timber.d("Unverified instance %s deleted %s", instance.path,
+                    new File(instance.path).delete());
+        }
+    }
+
+    /**
+     * Queues received instances and saves them once a group is complete. Streams of a
+     * session queue concurrently, so whichever stream completes a group saves it. Groups
+     * are saved one at a time in the order they were queued, which keeps the
+     * acknowledgements of every stream in the order its instances were sent.
+     */
+    private void queue(List<ReceivedInstance> instances) throws IOException {
+        synchronized (received) {
+            received.addAll(instances);
+            if (received.size() >= COMMIT_GROUP) {
+                flush(true);
+            }
+        }
+    }
+
+    private void flush(boolean acknowledge) throws IOException {
+        synchronized (received) {
+            if (received.isEmpty()) {
+                return;
+            }
+            List<ReceivedInstance> group = new ArrayList<>(received);
+            received.clear();
+            save(group);
+            if (acknowledge) {
+                acknowledge(group);
+            }
+        }
+    }
+
+    /**
+     * Tells the sender which of the saved instances it can record as sent, stream by
+     * stream. The instances of a stream are queued in the order they were sent, so a count
+     * is enough.
+     */
+    private static void acknowledge(List<ReceivedInstance> instances) throws IOException {
+        Map<FileReceiver, Integer> counts = new LinkedHashMap<>();
+        for (ReceivedInstance instance : instances) {
+            Integer count = counts.get(instance.receiver);
+            counts.put(instance.receiver, count == null ? 1 : count + 1);
+        }
+        for (Map.Entry<FileReceiver, Integer> count : counts.entrySet()) {
+            count.getKey().acknowledge(count.getValue());
+        }
+    }
+
+    /**
+     * Inserts a group of instances into Collect with one batch, then their share rows,
+     * digests and origins in one transaction, and syncs the checkpoint once. Instances
+     * are only marked complete in the checkpoint once they are saved, so an instance cut
+     * off before that is continued in its directory on the next attempt. Revisions are
+     * already in Collect, their rows are updated and they keep their origin.
+     */
+    private void save(List<ReceivedInstance> instances) throws IOException {
+        List<ContentValues> rows = new ArrayList<>();
+        for (ReceivedInstance instance : instances) {
+            if (instance.revision == null) {
+                rows.add(instance.values);
+            }
+        }
+        Iterator<Long> ids = new InstancesDao().saveInstances(rows).iterator();
+
+        List<ContentValues> shareRows = new ArrayList<>();
+        List<InstanceDigest> instanceDigests = new ArrayList<>();
+        List<InstanceOrigin> origins = new ArrayList<>();
+        List<String> senderIds = new ArrayList<>();
+        for (ReceivedInstance instance : instances) {
+            senderIds.add(instance.senderId);
+            String digest = digests.get(instance.senderId);
+            long instanceId;
+            if (instance.revision != null) {
+                instanceId = instance.revision.instanceId;
+                new InstancesDao().updateInstance(instance.values,
+                        InstanceProviderAPI.InstanceColumns._ID + "=?",
+                        new String[]{String.valueOf(instanceId)});
+            } else {
+                instanceId = ids.next();
+                if (senderInstall != null) {
+                    origins.add(new InstanceOrigin(instanceId,
+                            InstanceOrigin.getOrigin(senderInstall, instance.senderId)));
+                }
+            }
+
+            ContentValues shareValues = new ContentValues();
+            shareValues.put(INSTANCE_ID, instanceId);
+            shareValues.put(TRANSFER_STATUS, STATUS_FORM_RECEIVE);
+            shareRows.add(shareValues);
+            if (digest != null) {
+                instanceDigests.add(getDigest(instanceId, digest, instance.path));
+            }
+        }
+        ShareDatabaseHelper.getInstance(context).saveReceived(shareRows, instanceDigests,
+                origins);
+
+        if (checkpoint != null) {
+            checkpoint.complete(senderIds);
+        }
+        Timber.d("%d received instances saved", instances.size());
+    }
+
+    /**
+     * The digest the sender advertised for a received instance, kept so the next session
+     * with the same content can skip it.
+     */
+    private static InstanceDigest getDigest(long instanceId, String digest, String path) {
+        long size = 0;
+        long lastModified = 0;
+        File[] files = new File(path).listFiles();
+        if (files != null) {
+            for (File file : files) {
+                size += file.length();
+                lastModified = Math.max(lastModified, file.lastModified());
+            }
+        }
+        return new InstanceDigest(instanceId, digest, size, lastModified);
+    }
+
+    private static class ReceivedInstance {
+        final String senderId;
+        // row for the instances table of Collect, the changed columns for a revision
+        final ContentValues values;
+        // directory of the instance
+        final String path;
+        // stream it arrived on, which acknowledges it once it is saved
+        final FileReceiver receiver;
+        // the instance held here that this one is a newer revision of, if any
+        final Revision revision;
+
+        ReceivedInstance(String senderId, ContentValues values, String path,
+                         FileReceiver receiver, Revision revision) {
+            this.senderId = senderId;
+            this.values = values;
+            this.path = path;
+            this.receiver = receiver;
+            this.revision = revision;
+        }
+    }
+
+    private static class Revision {
+        final long instanceId;
+        // directory of the instance
+        final String path;
+
+        Revision(long instanceId, String path) {
+            this.instanceId = instanceId;
+            this.path = path;
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package org.odk.share.tasks;
+
+import android.content.ContentValues;
+import android.database.SQLException;
+
+import org.odk.share.dao.TransferDao;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import timber.log.Timber;
+
+/**
+ * Writes the share rows of a session on a thread of its own, so the threads writing to the
+ * network never wait on the database. Rows logged while a commit is running are committed
+ * together in the next transaction, through the provider so the lists of transfers
+ * refresh once per transaction.
+ */
+class TransferLogWriter {
+
+    private static final int CLOSE_TIMEOUT_SECONDS = 30;
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final List<ContentValues> pending = new ArrayList<>();
+
+    void log(List<ContentValues> rows) {
+        if (rows.isEmpty()) {
+            return;
+        }
+        synchronized (pending) {
+            pending.addAll(rows);
+        }
+        executor.execute(this::commit);
+    }
+
+    /**
+     * Waits until every row logged so far is written and stops the writer thread.
+     */
+    void close() throws InterruptedIOException {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                Timber.w("Transfer log still writing after %d s", CLOSE_TIMEOUT_SECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    private void commit() {
+        List<ContentValues> rows;
+        synchronized (pending) {
+            if (pending.isEmpty()) {
+                return;
+            }
+            rows = new ArrayList<>(pending);
+            pending.clear();
+        }
+
+        try {
+            new TransferDao().saveInstances(rows);
+            Timber.d("%d transfers logged", rows.size());
+        } catch (SQLException e) {
+            Timber.e(e);
+        }
+    }
+}
@@ -1,62 +1,71 @@
 package org.odk.share.tasks;
 
-import android.content.ContentValues;
-import android.database.Cursor;
+import android.preference.PreferenceManager;
 import android.support.annotation.NonNull;
 
 import com.evernote.android.job.Job;
 
 import org.odk.share.application.Share;
-import org.odk.share.dao.FormsDao;
-import org.odk.share.dao.InstancesDao;
 import org.odk.share.events.UploadEvent;
-import org.odk.share.database.ShareDatabaseHelper;
-import org.odk.share.provider.FormsProviderAPI;
-import org.odk.share.provider.InstanceProviderAPI;
+import org.odk.share.preferences.PreferenceKeys;
 import org.odk.share.rx.RxEventBus;
+import org.odk.share.transfer.BufferPool;
+import org.odk.share.transfer.FileReceiver;
+import org.odk.share.transfer.FrameReader;
+import org.odk.share.transfer.FrameWriter;
+import org.odk.share.transfer.Protocol;
+import org.odk.share.transfer.TransferServer;
 import org.odk.share.utilities.ArrayUtils;
-import org.odk.share.utilities.FileUtils;
 
-import java.io.BufferedInputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
-import java.net.ServerSocket;
+import java.io.InputStream;
+import java.net.ProtocolException;
 import java.net.Socket;
-import java.net.SocketException;
+import java.security.SecureRandom;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.inject.Inject;
 
 import timber.log.Timber;
 
-import static org.odk.share.dto.TransferInstance.INSTANCE_ID;
-import static org.odk.share.dto.TransferInstance.STATUS_FORM_SENT;
-import static org.odk.share.dto.TransferInstance.TRANSFER_STATUS;
-
+/**
+ * Serves the selected instances to receivers. Connections are accepted by a
+ * {@link TransferServer} on a single thread; each one either starts a new session with a hello
+ * frame or joins a running session as an additional stream. Sessions run on their own workers,
+ * at most as many at once as the settings allow, and sessions beyond that wait in line without
+ * holding a thread. With a limit of one the job ends after the first session, otherwise it
+ * keeps accepting receivers until cancelled. A receiver that syncs offers its own instances
+ * once its session is over, and those missing here are received on the same connection.
+ */
 public class UploadJob extends Job {
 
     public static final String TAG = "formUploadJob";
     public static final String INSTANCES = "instances";
     public static final String PORT = "port";
 
+    private static final int SHUTDOWN_TIMEOUT = 10000;
+
     @Inject
     RxEventBus rxEventBus;
 
     private int port;
     private Long[] instancesToSend;
-    private Socket socket;
-    private ServerSocket serverSocket;
-    private DataOutputStream dos;
-    private DataInputStream dis;
-    private int progress;
-    private int total;
+    private volatile TransferServer server;
+    private ExecutorService executor;
+    private final Map<Long, UploadSession> sessions = new ConcurrentHashMap<>();
+    private final Random random = new SecureRandom();
+    private final AtomicInteger progress = new AtomicInteger();
+    private final BufferPool bufferPool = new BufferPool();
+    private boolean started;
 
     @NonNull
     @Override
@@ -77,367 +86,139 @@ public class UploadJob extends Job {
     }
 
     private String uploadInstances() {
+        int maxSessions = getMaxSessions();
+        executor = Executors.newFixedThreadPool(maxSessions);
         try {
-            Timber.d("Waiting for receiver");
-
-            serverSocket = new ServerSocket(port);
-            socket = serverSocket.accept();
-            dos = new DataOutputStream(socket.getOutputStream());
-            dis = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
-
-            // show dialog and connected
-            Timber.d("Start Sending");
-            processSelectedFiles(instancesToSend);
-
-            // close connection
-            socket.close();
-            serverSocket.close();
-            dos.close();
-            dis.close();
-        } catch (SocketException e) {
-            Timber.e(e);
-        } catch (IOException e) {
-            Timber.e(e);
-        }
-
-        return String.valueOf(progress);
-    }
-
-    @Override
-    protected void onCancel() {
-        try {
-            if (socket != null) {
-                socket.close();
-            }
-            if (serverSocket != null) {
-                serverSocket.close();
-            }
-            if (dos != null) {
-                dos.close();
-            }
-            if (dis != null) {
-                dis.close();
-            }
+            UploadManifest manifest = new UploadManifest(getContext(), instancesToSend);
+            boolean single = maxSessions == 1;
+            server = new TransferServer(port, (channel, in) ->
+                    dispatch(channel.socket(), in, manifest, single));
+            if (isCanceled()) {
+                server.close();
+            }
+            Timber.d("Waiting for receivers, serving up to %d at once", maxSessions);
+            // returns once the last session or a cancel closes the server
+            server.run();
         } catch (IOException e) {
             Timber.e(e);
-        }
-    }
-
-    private boolean processSelectedFiles(Long[] ids) {
-
-        // map that stores key as formId and value is another map which contains version as key and List with instances as value
-        Map<String, Map<String, List<String>>> formMap = new HashMap<>();
-        StringBuilder selectionBuf = new StringBuilder(InstanceProviderAPI.InstanceColumns._ID + " IN (");
-        String[] selectionArgs = new String[ids.length];
-        for (int i = 0; i < ids.length; i++) {
-            if (i > 0) {
-                selectionBuf.append(",");
-            }
-            selectionBuf.append("?");
-            selectionArgs[i] = ids[i].toString();
-        }
-
-        selectionBuf.append(")");
-        String selection = selectionBuf.toString();
-
-        int count = 0;
-        try (Cursor cursor = new InstancesDao().getInstancesCursor(selection, selectionArgs)) {
-            if (cursor != null && cursor.getCount() > 0) {
-                cursor.moveToPosition(-1);
-                while (cursor.moveToNext()) {
-                    String formId = cursor.getString(cursor.getColumnIndex(InstanceProviderAPI.InstanceColumns.JR_FORM_ID));
-                    String formVersion = cursor.getString(cursor.getColumnIndex(InstanceProviderAPI.InstanceColumns.JR_VERSION));
-
-                    Map<String, List<String>> instanceMap;
-                    if (formMap.containsKey(formId)) {
-                        instanceMap = formMap.get(formId);
-                    } else {
-                        instanceMap = new HashMap<>();
-                        formMap.put(formId, instanceMap);
-                    }
-
-                    List<String> instancesList;
-                    if (instanceMap.containsKey(formVersion)) {
-                        instancesList = instanceMap.get(formVersion);
-                    } else {
-                        instancesList = new ArrayList<>();
-                        instanceMap.put(formVersion, instancesList);
-                        count++;
-                    }
-
-                    instancesList.add(cursor.getString(cursor.getColumnIndex(InstanceProviderAPI.InstanceColumns._ID)));
-                }
+        } finally {
+            executor.shutdown();
+            try {
+                executor.awaitTermination(SHUTDOWN_TIMEOUT, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             }
-            Timber.d(String.valueOf(formMap));
-        }
-
-        // send number of distinct forms
-        try {
-            dos.writeInt(ids.length);
-            dos.writeInt(count);
-        } catch (IOException e) {
-            Timber.e(e);
         }
 
-        total = ids.length;
-        // using iterators
-
-        for (Map.Entry<String, Map<String, List<String>>> mapId : formMap.entrySet()) {
-            Map<String, List<String>> formVersionMap = mapId.getValue();
+        return String.valueOf(progress.get());
+    }
 
-            for (Map.Entry<String, List<String>> mapVersion : formVersionMap.entrySet()) {
-                List<String> instanceIds = mapVersion.getValue();
-                String formVers = mapVersion.getKey();
-                String formId = mapId.getKey();
-                sendFormWithInstance(formId, formVers, instanceIds);
-                progress += instanceIds.size();
-            }
+    /**
+     * Starts a session for a connection that opens with a hello frame, or hands a connection
+     * that opens with a join frame to the session it names.
+     */
+    private void dispatch(Socket socket, InputStream in, UploadManifest manifest, boolean single)
+            throws IOException {
+        // the first frame is already in memory, so this neither blocks nor reads past it
+        FrameReader first = new FrameReader(in);
+        int type = first.next();
+
+        if (type == Protocol.JOIN) {
+            long token = first.readVarLong();
+            UploadSession session = sessions.get(token);
+            if (session == null) {
+                throw new ProtocolException("No session " + token + " to join");
+            }
+            session.join(socket);
+        } else if (type == Protocol.HELLO) {
+            if (single && started) {
+                throw new ProtocolException("Already serving a receiver");
+            }
+            long capabilities = Protocol.readHello(first);
+            FrameWriter writer = new FrameWriter(
+                    new BufferedOutputStream(socket.getOutputStream()));
+            Protocol.sendHello(writer);
+
+            // the receiver side of the connection is only used if the receiver syncs back
+            FileReceiver receiver = new FileReceiver(socket, in, bufferPool);
+            long token = random.nextLong() & Long.MAX_VALUE;
+            UploadSession session = new UploadSession(getContext(), rxEventBus, manifest, socket,
+                    writer, receiver.getReader(), capabilities, token, bufferPool, true);
+            sessions.put(token, session);
+            started = true;
+            executor.execute(() -> serve(session, socket, receiver, writer, capabilities, single));
+        } else {
+            throw new ProtocolException("Unexpected frame " + type);
         }
-        return true;
     }
 
-    private void sendFormWithInstance(String formId, String formVersion, List<String> instanceIds) {
+    private void serve(UploadSession session, Socket socket, FileReceiver receiver,
+                       FrameWriter writer, long capabilities, boolean single) {
+        Timber.d("Start Sending");
         try {
-            Timber.d("SendFormWithInstance");
-            dos.writeUTF(formId);
-
-            if (formVersion == null) {
-                dos.writeUTF("-1");
-            } else {
-                dos.writeUTF(formVersion);
-            }
-
-            dos.flush();
-
-            Timber.d("Waiting for response from the receiver for %s %s ", formId, formVersion);
-            while (dis.available() <= 0) {
-                continue;
-            }
-
-            boolean formExistAtReceiver = dis.readBoolean();
-            Timber.d("Form exists " + formExistAtReceiver);
-
-            if (!formExistAtReceiver) {
-                sendForm(formId, formVersion);
-                Timber.d("Form Sent");
+            session.run();
+            if ((capabilities & Protocol.CAP_SYNC) != 0) {
+                receiveSync(socket, receiver, writer, capabilities);
             }
-
-            Timber.d("Sending Instances");
-            sendInstances(instanceIds, progress, total);
-            Timber.d("Instanes sent");
         } catch (IOException e) {
             Timber.e(e);
-        }
-    }
-
-    private void sendForm(String formId, String formVersion) {
-        String[] selectionArgs;
-        String selection;
-
-        if (formVersion == null) {
-            selectionArgs = new String[]{formId};
-            selection = FormsProviderAPI.FormsColumns.JR_FORM_ID + "=? AND "
-                    + FormsProviderAPI.FormsColumns.JR_VERSION + " IS NULL";
-        } else {
-            selectionArgs = new String[]{formId, formVersion};
-            selection = FormsProviderAPI.FormsColumns.JR_FORM_ID + "=? AND "
-                    + FormsProviderAPI.FormsColumns.JR_VERSION + "=?";
-        }
-
-        try (Cursor cursor = new FormsDao().getFormsCursor(null, selection, selectionArgs, null)) {
-            cursor.moveToPosition(-1);
-
-            if (cursor.moveToNext()) {
-                String displayName = cursor.getString(cursor.getColumnIndex(FormsProviderAPI.FormsColumns.DISPLAY_NAME));
-                String formMediaPath = cursor.getString(cursor.getColumnIndex(FormsProviderAPI.FormsColumns.FORM_MEDIA_PATH));
-                String formFilePath = cursor.getString(cursor.getColumnIndex(FormsProviderAPI.FormsColumns.FORM_FILE_PATH));
-                String submissionUri = cursor.getString(cursor.getColumnIndex(FormsProviderAPI.FormsColumns.SUBMISSION_URI));
-
-                try {
-                    dos.writeUTF(displayName);
-                    dos.writeUTF(formId);
-
-                    if (formVersion == null) {
-                        dos.writeUTF("-1");
-                    } else {
-                        dos.writeUTF(formVersion);
-                    }
-
-                    if (submissionUri == null) {
-                        dos.writeUTF("-1");
-                    } else {
-                        dos.writeUTF(submissionUri);
-                    }
-
-                    // form file sent
-                    sendFile(formFilePath);
-
-                    // send form resources
-                    File[] formRes = getFormResources(formMediaPath);
-
-                    if (formRes != null) {
-                        dos.writeInt(formRes.length);
-                        for (File f : formRes) {
-                            String fileName = f.getName();
-                            sendFile(formMediaPath + "/" + fileName);
-                        }
-                    } else {
-                        dos.writeInt(0);
-                    }
-                } catch (IOException e) {
-                    Timber.e(e);
-                }
+        } finally {
+            sessions.remove(session.getToken());
+            progress.addAndGet(session.getProgress());
+            if (single) {
+                server.close();
+            }
+            try {
+                session.close();
+            } catch (IOException e) {
+                Timber.e(e);
             }
         }
     }
 
-    private void sendInstances(List<String> instanceIds, int progress, int total) {
-        StringBuilder selectionBuf = new StringBuilder(InstanceProviderAPI.InstanceColumns._ID + " IN (");
-        String[] selectionArgs = new String[instanceIds.size()];
-        for (int i = 0; i < instanceIds.size(); i++) {
-            if (i > 0) {
-                selectionBuf.append(",");
-            }
-            selectionBuf.append("?");
-            selectionArgs[i] = instanceIds.get(i);
+    /**
+     * Receives what the receiver offers in return, with the roles of the connection swapped.
+     * The receiver has no port of its own for additional streams, so everything comes over
+     * this one.
+     */
+    private void receiveSync(Socket socket, FileReceiver receiver, FrameWriter writer,
+                             long capabilities) throws IOException {
+        FrameReader reader = receiver.getReader();
+        reader.expect(Protocol.SYNC);
+        int count = reader.readVarInt();
+        if (count == 0) {
+            return;
         }
 
-        selectionBuf.append(")");
-        String selection = selectionBuf.toString();
-        Cursor c = null;
+        Timber.d("Receiver syncs back %d instances", count);
+        DownloadSession back = new DownloadSession(getContext(), rxEventBus, socket, receiver,
+                writer, capabilities, null, bufferPool);
         try {
-            c = new InstancesDao().getInstancesCursor(selection, selectionArgs);
-
-            if (c != null && c.getCount() > 0) {
-                dos.writeInt(c.getCount());
-                c.moveToPosition(-1);
-                while (c.moveToNext()) {
-                    String displayName = c.getString(
-                            c.getColumnIndex(InstanceProviderAPI.InstanceColumns.DISPLAY_NAME));
-                    String submissionUri = c.getString(
-                            c.getColumnIndex(InstanceProviderAPI.InstanceColumns.SUBMISSION_URI));
-
-                    dos.writeUTF(displayName);
-
-                    if (submissionUri == null) {
-                        dos.writeUTF("-1");
-                    } else {
-                        dos.writeUTF(submissionUri);
-                    }
-
-                    rxEventBus.post(new UploadEvent(UploadEvent.Status.UPLOADING, ++progress, total));
-                    String instance = c.getString(
-                            c.getColumnIndex(InstanceProviderAPI.InstanceColumns.INSTANCE_FILE_PATH));
-
-                    sendInstance(instance);
-
-                    // add row in share table
-                    ContentValues values = new ContentValues();
-                    values.put(INSTANCE_ID,
-                            c.getLong(c.getColumnIndex(InstanceProviderAPI.InstanceColumns._ID)));
-                    values.put(TRANSFER_STATUS, STATUS_FORM_SENT);
-                    new ShareDatabaseHelper(getContext()).insertInstance(values);
-                }
-            }
-        } catch (IOException e) {
-            c.close();
+            back.run();
         } finally {
-            if (c != null) {
-                c.close();
-            }
-        }
-    }
-
-    private void sendFile(String filePath) {
-        byte[] bytes = new byte[4096];
-        try {
-            File file = new File(filePath);
-            int read = 0;
-            BufferedInputStream bis = new BufferedInputStream(new FileInputStream(file));
-            DataInputStream fileInputStream = new DataInputStream(bis);
-            dos.writeUTF(file.getName());
-            dos.writeLong(file.length());
-            while ((read = fileInputStream.read(bytes)) > 0) {
-                dos.write(bytes, 0, read);
-            }
-            final String sentMsg = "File sent to: " + socket;
-            Timber.d("Sent message %s ", sentMsg);
-        } catch (FileNotFoundException e1) {
-            Timber.e(e1);
-        } catch (IOException e1) {
-            Timber.e(e1);
+            back.close();
         }
+        Timber.d("Holding %d of %d synced instances", back.getProgress(), count);
     }
 
-    private File[] getFormResources(String formResPath) {
-        File directory = new File(formResPath);
-        return directory.listFiles();
-    }
-
-    private boolean sendInstance(String instanceFilePath) {
-        File instanceFile = new File(instanceFilePath);
-        File[] allFiles = instanceFile.getParentFile().listFiles();
-
-        // add media files
-        List<File> files = new ArrayList<File>();
-        files.add(instanceFile);
-        if (allFiles != null) {
-            for (File f : allFiles) {
-                String fileName = f.getName();
-
-                if (fileName.startsWith(".")) {
-                    continue; // ignore invisible files
-                } else if (fileName.equals(instanceFile.getName())) {
-                    continue; // the xml file has already been added
-                } else if (fileName.equals(instanceFile.getName())) {
-                    continue; // the xml file has already been added
-                }
-
-                String extension = FileUtils.getFileExtension(fileName);
-
-                if (extension.equals("jpg")) { // legacy 0.9x
-                    files.add(f);
-                } else if (extension.equals("3gpp")) { // legacy 0.9x
-                    files.add(f);
-                } else if (extension.equals("3gp")) { // legacy 0.9x
-                    files.add(f);
-                } else if (extension.equals("mp4")) { // legacy 0.9x
-                    files.add(f);
-                } else if (extension.equals("osm")) { // legacy 0.9x
-                    files.add(f);
-                } else {
-                    Timber.d("unrecognized file type " + f.getName());
-                }
-            }
+    @Override
+    protected void onCancel() {
+        if (server != null) {
+            server.close();
         }
-        Timber.d("Files : " + files);
-        return uploadFiles(files);
-    }
-
-    boolean uploadFiles(List<File> files) {
-        byte[] bytes = new byte[4096];
         try {
-            int read = 0;
-            dos.writeInt(files.size());
-            Timber.d("File size : " + files.size());
-            for (int i = 0; i < files.size(); i++) {
-                File file = files.get(i);
-                BufferedInputStream bis = new BufferedInputStream(new FileInputStream(file));
-                dos.writeUTF(file.getName());
-                dos.writeLong(file.length());
-                DataInputStream fileInputStream = new DataInputStream(bis);
-                Timber.d("Name " + file.getName() + " " + file.length());
-                while ((read = fileInputStream.read(bytes)) > 0) {
-                    dos.write(bytes, 0, read);
-                }
-                final String sentMsg = "File sent to: " + socket;
-                Timber.d("Sent message " + sentMsg);
+            List<UploadSession> running = new ArrayList<>(sessions.values());
+            for (UploadSession session : running) {
+                session.close();
             }
-        } catch (FileNotFoundException e) {
-            return false;
         } catch (IOException e) {
-            return false;
+            Timber.e(e);
         }
-        return true;
+    }
+
+    private int getMaxSessions() {
+        int count = Integer.parseInt(PreferenceManager.getDefaultSharedPreferences(getContext())
+                .getString(PreferenceKeys.KEY_TRANSFER_RECEIVERS, "1"));
+        return Math.max(1, count);
     }
 }
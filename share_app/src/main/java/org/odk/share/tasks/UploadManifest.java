@@ -0,0 +1,284 @@
+package org.odk.share.tasks;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.preference.PreferenceManager;
+
+import org.odk.share.dao.InstancesDao;
+import org.odk.share.database.ShareDatabaseHelper;
+import org.odk.share.dto.InstanceDigest;
+import org.odk.share.preferences.PreferenceKeys;
+import org.odk.share.provider.InstanceProviderAPI;
+import org.odk.share.utilities.DigestUtils;
+import org.odk.share.utilities.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import timber.log.Timber;
+
+/**
+ * The selected instances grouped by form version, with their paths and sizes. It is read
+ * once per send and shared by every receiver served from the same selection.
+ */
+class UploadManifest {
+
+    private final Context context;
+    private final Long[] ids;
+    private final List<FormGroup> groups = new ArrayList<>();
+    // size in bytes of everything that will be sent for each instance
+    private final Map<String, Long> instanceSizes = new HashMap<>();
+    private final Map<String, String> instancePaths = new HashMap<>();
+    private long totalSize;
+    private String sessionId;
+    private Map<String, String> digests;
+
+    UploadManifest(Context context, Long[] ids) {
+        this.context = context;
+        this.ids = ids;
+
+        // map that stores key as formId and value is another map which contains version as key and List with instances as value
+        Map<String, Map<String, List<String>>> formMap = new HashMap<>();
+        StringBuilder selectionBuf = new StringBuilder(InstanceProviderAPI.InstanceColumns._ID + " IN (");
+        String[] selectionArgs = new String[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            if (i > 0) {
+                selectionBuf.append(",");
+            }
+            selectionBuf.append("?");
+            selectionArgs[i] = ids[i].toString();
+        }
+
+        selectionBuf.append(")");
+        String selection = selectionBuf.toString();
+
+        try (Cursor cursor = new InstancesDao().getInstancesCursor(selection, selectionArgs)) {
+            if (cursor != null && cursor.getCount() > 0) {
+                cursor.moveToPosition(-1);
+                while (cursor.moveToNext()) {
+                    String formId = cursor.getString(cursor.getColumnIndex(InstanceProviderAPI.InstanceColumns.JR_FORM_ID));
+                    String formVersion = cursor.getString(cursor.getColumnIndex(InstanceProviderAPI.InstanceColumns.JR_VERSION));
+
+                    Map<String, List<String>> instanceMap;
+                    if (formMap.containsKey(formId)) {
+                        instanceMap = formMap.get(formId);
+                    } else {
+                        instanceMap = new HashMap<>();
+                        formMap.put(formId, instanceMap);
+                    }
+
+                    List<String> instancesList;
+                    if (instanceMap.containsKey(formVersion)) {
+                        instancesList = instanceMap.get(formVersion);
+                    } else {
+                        instancesList = new ArrayList<>();
+                        instanceMap.put(formVersion, instancesList);
+                    }
+
+                    String id = cursor.getString(cursor.getColumnIndex(InstanceProviderAPI.InstanceColumns._ID));
+                    String instanceFilePath = cursor.getString(cursor.getColumnIndex(InstanceProviderAPI.InstanceColumns.INSTANCE_FILE_PATH));
+                    long size = getInstanceSize(instanceFilePath);
+                    instanceSizes.put(id, size);
+                    instancePaths.put(id, instanceFilePath);
+                    totalSize += size;
+                    instancesList.add(id);
+                }
+            }
+            Timber.d(String.valueOf(formMap));
+        }
+
+        for (Map.Entry<String, Map<String, List<String>>> mapId : formMap.entrySet()) {
+            for (Map.Entry<String, List<String>> mapVersion : mapId.getValue().entrySet()) {
+                groups.add(new FormGroup(mapId.getKey(), mapVersion.getKey(), mapVersion.getValue()));
+            }
+        }
+    }
+
+    int getInstanceCount() {
+        return ids.length;
+    }
+
+    long getTotalSize() {
+        return totalSize;
+    }
+
+    /**
+     * Copies of the form groups, for a session to trim down to what its receiver is missing.
+     */
+    List<FormGroup> getGroups() {
+        List<FormGroup> copies = new ArrayList<>();
+        for (FormGroup group : groups) {
+            copies.add(group.copy());
+        }
+        return copies;
+    }
+
+    Map<String, Long> getInstanceSizes() {
+        return new HashMap<>(instanceSizes);
+    }
+
+    /**
+     * Content digests of the instances, by instance id. Digests are cached in the share
+     * database and only computed again once the files of an instance change. Instances that
+     * cannot be read are left out and always sent. They are computed for the first receiver
+     * that asks and shared by the others.
+     */
+    synchronized Map<String, String> getDigests() {
+        if (digests != null) {
+            return digests;
+        }
+
+        List<Long> ids = new ArrayList<>();
+        for (String id : instancePaths.keySet()) {
+            ids.add(Long.parseLong(id));
+        }
+        ShareDatabaseHelper helper = ShareDatabaseHelper.getInstance(context);
+        Map<Long, InstanceDigest> cached = helper.getDigests(ids);
+
+        digests = new HashMap<>();
+        List<InstanceDigest> computed = new ArrayList<>();
+        for (Long id : ids) {
+            List<File> files = getInstanceFiles(instancePaths.get(String.valueOf(id)));
+            long size = 0;
+            long lastModified = 0;
+            for (File file : files) {
+                size += file.length();
+                lastModified = Math.max(lastModified, file.lastModified());
+            }
+
+            InstanceDigest digest = cached.get(id);
+            if (digest == null || !digest.matches(size, lastModified)) {
+                try {
+                    digest = new InstanceDigest(id, DigestUtils.sha256(files), size, lastModified);
+                    computed.add(digest);
+                } catch (IOException e) {
+                    Timber.e(e);
+                    continue;
+                }
+            }
+            digests.put(String.valueOf(id), digest.getDigest());
+        }
+
+        helper.saveDigests(computed);
+        Timber.d("%d digests, %d computed", digests.size(), computed.size());
+        return digests;
+    }
+
+    /**
+     * Identifies a session across attempts: the same selection sent from the same device
+     * always gets the same id, so the receiver can find the checkpoint of an earlier attempt.
+     */
+    synchronized String getSessionId() {
+        if (sessionId != null) {
+            return sessionId;
+        }
+
+        Long[] sorted = ids.clone();
+        Arrays.sort(sorted);
+        StringBuilder key = new StringBuilder(getInstallId());
+        for (Long id : sorted) {
+            key.append(',').append(id);
+        }
+        sessionId = DigestUtils.sha1(key.toString());
+        return sessionId;
+    }
+
+    /**
+     * Identifies this installation. Together with an instance id it names an instance on
+     * every device it is sent to, so a later revision can be matched with the earlier one.
+     */
+    synchronized String getInstallId() {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        String installId = prefs.getString(PreferenceKeys.KEY_INSTALL_ID, null);
+        if (installId == null) {
+            installId = UUID.randomUUID().toString();
+            prefs.edit().putString(PreferenceKeys.KEY_INSTALL_ID, installId).apply();
+        }
+        return installId;
+    }
+
+    static long getInstanceSize(String instanceFilePath) {
+        return getSize(getInstanceFiles(instanceFilePath));
+    }
+
+    static long getSize(List<File> files) {
+        long size = 0;
+        for (File file : files) {
+            size += file.length();
+        }
+        return size;
+    }
+
+    static List<File> getInstanceFiles(String instanceFilePath) {
+        File instanceFile = new File(instanceFilePath);
+        File[] allFiles = instanceFile.getParentFile().listFiles();
+        if (allFiles != null) {
+            // a stable order keeps the content digest of the instance stable
+            Arrays.sort(allFiles);
+        }
+
+        // add media files
+        List<File> files = new ArrayList<File>();
+        files.add(instanceFile);
+        if (allFiles != null) {
+            for (File f : allFiles) {
+                String fileName = f.getName();
+
+                if (fileName.startsWith(".")) {
+                    continue; // ignore invisible files
+                } else if (fileName.equals(instanceFile.getName())) {
+                    continue; // the xml file has already been added
+                } else if (fileName.equals(instanceFile.getName())) {
+                    continue; // the xml file has already been added
+                }
+
+                String extension = FileUtils.getFileExtension(fileName);
+
+                if (extension.equals("jpg")) { // legacy 0.9x
+                    files.add(f);
+                } else if (extension.equals("3gpp")) { // legacy 0.9x
+                    files.add(f);
+                } else if (extension.equals("3gp")) { // legacy 0.9x
+                    files.add(f);
+                } else if (extension.equals("mp4")) { // legacy 0.9x
+                    files.add(f);
+                } else if (extension.equals("osm")) { // legacy 0.9x
+                    files.add(f);
+                } else {
+                    Timber.d("unrecognized file type " + f.getName());
+                }
+            }
+        }
+        return files;
+    }
+
+    static class FormGroup {
+        final String formId;
+        final String formVersion;
+        final List<String> instanceIds;
+        // media digests the receiver holds for other versions of the form
+        final Set<String> receiverMedia = new HashSet<>();
+
+        FormGroup(String formId, String formVersion, List<String> instanceIds) {
+            this.formId = formId;
+            this.formVersion = formVersion;
+            this.instanceIds = instanceIds;
+        }
+
+        /**
+         * A copy that one session can trim down to what its receiver is missing.
+         */
+        FormGroup copy() {
+            return new FormGroup(formId, formVersion, new ArrayList<>(instanceIds));
+        }
+    }
+}
@@ -0,0 +1,816 @@
+package org.odk.share.tasks;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.preference.PreferenceManager;
+
+import org.odk.share.dao.FormsDao;
+import org.odk.share.dao.InstancesDao;
+import org.odk.share.events.UploadEvent;
+import org.odk.share.preferences.PreferenceKeys;
+import org.odk.share.provider.FormsProviderAPI;
+import org.odk.share.provider.InstanceProviderAPI;
+import org.odk.share.rx.RxEventBus;
+import org.odk.share.tasks.UploadManifest.FormGroup;
+import org.odk.share.transfer.BlockSignature;
+import org.odk.share.transfer.BufferPool;
+import org.odk.share.transfer.FileDigestCache;
+import org.odk.share.transfer.FileSender;
+import org.odk.share.transfer.FrameReader;
+import org.odk.share.transfer.FrameWriter;
+import org.odk.share.transfer.LinkStats;
+import org.odk.share.transfer.LinkTuning;
+import org.odk.share.transfer.Protocol;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import timber.log.Timber;
+
+import static org.odk.share.dto.TransferInstance.INSTANCE_ID;
+import static org.odk.share.dto.TransferInstance.STATUS_FORM_SENT;
+import static org.odk.share.dto.TransferInstance.TRANSFER_STATUS;
+
+/**
+ * Sends the selection of an {@link UploadManifest} to one receiver: negotiates what the
+ * receiver is missing, plans the streams and sends the forms and instances over them.
+ */
+class UploadSession {
+
+    // upper bound for the number of parallel streams picked automatically
+    private static final int MAX_AUTO_STREAMS = 4;
+    // amount of payload that justifies one more stream in auto mode
+    private static final long BYTES_PER_STREAM = 16 * 1024 * 1024;
+    private static final int JOIN_TIMEOUT = 10000;
+    // instances up to this size are packed together instead of sent file by file
+    private static final long MAX_BATCHED_INSTANCE = 64 * 1024;
+    private static final long MAX_BATCH_SIZE = 1024 * 1024;
+    private static final int MAX_BATCH_COUNT = 500;
+
+    private final Context context;
+    private final RxEventBus rxEventBus;
+    private final UploadManifest manifest;
+    private final Socket socket;
+    private final FrameWriter writer;
+    private final FrameReader reader;
+    // optional protocol features both peers support
+    private final long capabilities;
+    // names this session to the additional streams of its receiver
+    private final long token;
+    private final BlockingQueue<Socket> joined = new LinkedBlockingQueue<>();
+    private final List<Socket> streams = Collections.synchronizedList(new ArrayList<>());
+    private final BufferPool bufferPool;
+    // whether the receiver can open additional streams, it cannot on a sync back to the host
+    private final boolean canJoin;
+    private final AtomicInteger progress = new AtomicInteger();
+    private final int total;
+    // lengths of the files the receiver already holds for instances it did not finish
+    private final Map<String, Map<String, Long>> resumeOffsets = new HashMap<>();
+    // signatures of the files of instances the receiver holds in an older revision
+    private final Map<String, Map<String, BlockSignature>> revisions = new HashMap<>();
+    private final TransferLogWriter transferLog;
+    // whether the receiver acknowledges the instances it stored
+    private final boolean acknowledged;
+
+    UploadSession(Context context, RxEventBus rxEventBus, UploadManifest manifest, Socket socket,
+                  FrameWriter writer, FrameReader reader, long capabilities, long token,
+                  BufferPool bufferPool, boolean canJoin) {
+        this.context = context;
+        this.rxEventBus = rxEventBus;
+        this.manifest = manifest;
+        this.socket = socket;
+        this.writer = writer;
+        this.reader = reader;
+        this.capabilities = capabilities;
+        this.token = token;
+        this.bufferPool = bufferPool;
+        this.canJoin = canJoin;
+        total = manifest.getInstanceCount();
+        transferLog = new TransferLogWriter();
+        acknowledged = (capabilities & Protocol.CAP_ACK) != 0;
+    }
+
+    long getToken() {
+        return token;
+    }
+
+    /**
+     * Number of instances the receiver has, whether they were sent now or held already.
+     */
+    int getProgress() {
+        return progress.get();
+    }
+
+    /**
+     * Runs the session. Share rows of what the receiver has are written in the background
+     * and are all written by the time this returns.
+     */
+    void run() throws IOException {
+        try {
+            transfer();
+        } finally {
+            transferLog.close();
+        }
+    }
+
+    private void transfer() throws IOException {
+        List<FormGroup> groups = manifest.getGroups();
+        Map<String, Long> instanceSizes = manifest.getInstanceSizes();
+        long totalSize = manifest.getTotalSize();
+
+        LinkTuning.DEFAULT.apply(socket);
+        LinkTuning tuning = LinkTuning.DEFAULT;
+        if ((capabilities & Protocol.CAP_TUNING) != 0) {
+            tuning = LinkTuning.forLink(LinkStats.measure(writer, reader));
+            tuning.apply(socket);
+        }
+        LinkTuning.setLast(tuning);
+
+        boolean[] formExists = negotiateForms(groups);
+        totalSize -= skipReceived(groups, instanceSizes);
+
+        List<List<StreamUnit>> plan = planStreams(groups, formExists, instanceSizes,
+                getStreamCount(totalSize, instanceSizes.size()));
+        Timber.d("Sending %d bytes over %d stream(s)", totalSize, plan.size());
+        boolean verify = (capabilities & Protocol.CAP_CHECKSUM) != 0
+                && PreferenceManager.getDefaultSharedPreferences(context)
+                .getBoolean(PreferenceKeys.KEY_TRANSFER_VERIFY, false);
+        writer.begin(Protocol.PLAN);
+        writer.writeVarInt(plan.size());
+        writer.writeVarLong(token);
+        if ((capabilities & Protocol.CAP_CHECKSUM) != 0) {
+            writer.writeBoolean(verify);
+        }
+        if ((capabilities & Protocol.CAP_TUNING) != 0) {
+            writer.writeVarInt(tuning.getSocketBufferSize());
+            writer.writeVarInt(tuning.getConnectTimeout());
+        }
+        writer.end();
+        writer.flush();
+
+        List<FileSender> senders = openStreams(plan.size(), verify, tuning);
+        try {
+            sendStreams(groups, plan, senders);
+        } finally {
+            for (FileSender sender : senders) {
+                sender.close();
+            }
+        }
+    }
+
+    /**
+     * Hands over an additional stream the receiver opened for this session.
+     */
+    void join(Socket stream) {
+        joined.add(stream);
+    }
+
+    void close() throws IOException {
+        synchronized (streams) {
+            for (Socket stream : streams) {
+                stream.close();
+            }
+            streams.clear();
+        }
+        Socket stream;
+        while ((stream = joined.poll()) != null) {
+            stream.close();
+        }
+        socket.close();
+    }
+
+    /**
+     * Sends every (formId, formVersion) pair of the session in one offer and reads back
+     * whether the receiver already has each form, so the data phase never has to wait on
+     * the receiver again. The offer also carries the session id and the instance digests
+     * when the receiver supports resuming and deduplication.
+     */
+    private boolean[] negotiateForms(List<FormGroup> groups) throws IOException {
+        writer.begin(Protocol.OFFER);
+        writer.writeVarInt(total);
+        writer.writeVarInt(groups.size());
+        for (FormGroup group : groups) {
+            writer.writeString(group.formId);
+            writer.writeString(group.formVersion);
+        }
+        if ((capabilities & Protocol.CAP_RESUME) != 0) {
+            writer.writeString(manifest.getSessionId());
+        }
+        if ((capabilities & Protocol.CAP_DEDUP) != 0) {
+            Map<String, String> digests = manifest.getDigests();
+            writer.writeVarInt(digests.size());
+            for (Map.Entry<String, String> digest : digests.entrySet()) {
+                writer.writeString(digest.getKey());
+                writer.writeString(digest.getValue());
+            }
+            if ((capabilities & Protocol.CAP_DELTA) != 0) {
+                writer.writeString(manifest.getInstallId());
+            }
+        }
+        writer.end();
+        writer.flush();
+
+        Timber.d("Waiting for response from the receiver for %d forms", groups.size());
+        reader.expect(Protocol.ANSWER);
+        boolean[] formExists = new boolean[groups.size()];
+        for (int i = 0; i < formExists.length; i++) {
+            formExists[i] = reader.readBoolean();
+        }
+
+        // digests of the media the receiver holds for other versions of each missing form
+        if ((capabilities & Protocol.CAP_MEDIA_REUSE) != 0) {
+            for (int i = 0; i < formExists.length; i++) {
+                if (!formExists[i]) {
+                    int numMedia = reader.readVarInt();
+                    while (numMedia-- > 0) {
+                        groups.get(i).receiverMedia.add(reader.readString());
+                    }
+                }
+            }
+        }
+        return formExists;
+    }
+
+    /**
+     * Reads what the receiver kept from an earlier attempt of this session and which
+     * instances it already holds with the same content. Those are dropped from the groups and
+     * partially received ones only send the bytes the receiver is missing. The session id
+     * stays the same when an instance is edited, so a partial instance is only continued if
+     * the digest it was started with is still that of its content. Otherwise the bytes the
+     * receiver holds are of an older revision and the instance is sent whole.
+     *
+     * @return the number of bytes that no longer have to be sent
+     */
+    private long skipReceived(List<FormGroup> groups, Map<String, Long> instanceSizes)
+            throws IOException {
+        Set<String> completed = new HashSet<>();
+        if ((capabilities & Protocol.CAP_RESUME) != 0) {
+            int numCompleted = reader.readVarInt();
+            while (numCompleted-- > 0) {
+                completed.add(reader.readString());
+            }
+
+            int numPartial = reader.readVarInt();
+            while (numPartial-- > 0) {
+                String id = reader.readString();
+                String digest = reader.readString();
+                Map<String, Long> lengths = new HashMap<>();
+                int numFiles = reader.readVarInt();
+                while (numFiles-- > 0) {
+                    String name = reader.readString();
+                    lengths.put(name, reader.readVarLong());
+                }
+                if (digest == null || !digest.equals(manifest.getDigests().get(id))) {
+                    // still sent file by file into the directory it was started in
+                    Timber.d("Instance %s changed since it was cut off, sending it whole", id);
+                    lengths.clear();
+                }
+                resumeOffsets.put(id, lengths);
+            }
+        }
+
+        Set<String> held = new HashSet<>();
+        if ((capabilities & Protocol.CAP_DEDUP) != 0) {
+            int numHeld = reader.readVarInt();
+            while (numHeld-- > 0) {
+                held.add(reader.readString());
+            }
+            if ((capabilities & Protocol.CAP_DELTA) != 0) {
+                readRevisions();
+            }
+        }
+
+        long skipped = 0;
+        List<ContentValues> heldRows = new ArrayList<>();
+        for (FormGroup group : groups) {
+            Iterator<String> it = group.instanceIds.iterator();
+            while (it.hasNext()) {
+                String id = it.next();
+                if (completed.contains(id) || held.contains(id)) {
+                    it.remove();
+                    skipped += instanceSizes.remove(id);
+                    progress.incrementAndGet();
+                    if (held.contains(id)) {
+                        ContentValues values = new ContentValues();
+                        values.put(INSTANCE_ID, Long.parseLong(id));
+                        values.put(TRANSFER_STATUS, STATUS_FORM_SENT);
+                        heldRows.add(values);
+                    }
+                } else if (resumeOffsets.containsKey(id)) {
+                    long received = 0;
+                    for (Long length : resumeOffsets.get(id).values()) {
+                        received += length;
+                    }
+                    received = Math.min(received, instanceSizes.get(id));
+                    instanceSizes.put(id, instanceSizes.get(id) - received);
+                    skipped += received;
+                }
+            }
+        }
+
+        transferLog.log(heldRows);
+        Timber.d("Skipping %d instances, %d already held, %d partial", progress.get(),
+                held.size(), resumeOffsets.size());
+        return skipped;
+    }
+
+    /**
+     * Reads the block signatures of the instances the receiver holds in an older revision.
+     */
+    private void readRevisions() throws IOException {
+        int numRevisions = reader.readVarInt();
+        while (numRevisions-- > 0) {
+            String id = reader.readString();
+            Map<String, BlockSignature> signatures = new HashMap<>();
+            int numFiles = reader.readVarInt();
+            while (numFiles-- > 0) {
+                String name = reader.readString();
+                signatures.put(name, BlockSignature.read(reader));
+            }
+            revisions.put(id, signatures);
+        }
+        Timber.d("%d instances held in an older revision", revisions.size());
+    }
+
+    /**
+     * Number of parallel streams to use for this session. A positive value in the settings
+     * is used as is, otherwise one stream is opened for every {@link #BYTES_PER_STREAM} of
+     * payload, up to {@link #MAX_AUTO_STREAMS}.
+     */
+    private int getStreamCount(long totalSize, int instanceCount) {
+        if (!canJoin) {
+            return 1;
+        }
+        int count = Integer.parseInt(PreferenceManager.getDefaultSharedPreferences(context)
+                .getString(PreferenceKeys.KEY_TRANSFER_STREAMS, "0"));
+        if (count <= 0) {
+            count = (int) Math.min(MAX_AUTO_STREAMS, 1 + totalSize / BYTES_PER_STREAM);
+        }
+        return Math.max(1, Math.min(count, instanceCount));
+    }
+
+    /**
+     * Splits the instances across {@code streamCount} streams so that every stream carries
+     * roughly the same number of bytes. The biggest instances are placed first, each one on
+     * the least loaded stream. A missing form is sent by the first stream that carries one
+     * of its instances.
+     */
+    private List<List<StreamUnit>> planStreams(List<FormGroup> groups, boolean[] formExists,
+                                               Map<String, Long> instanceSizes, int streamCount) {
+        List<PlannedInstance> instances = new ArrayList<>();
+        for (int i = 0; i < groups.size(); i++) {
+            for (String id : groups.get(i).instanceIds) {
+                Long size = instanceSizes.get(id);
+                instances.add(new PlannedInstance(i, id, size == null ? 0 : size));
+            }
+        }
+        Collections.sort(instances, (a, b) -> a.size == b.size ? 0 : a.size > b.size ? -1 : 1);
+
+        long[] load = new long[streamCount];
+        List<Map<Integer, List<String>>> assigned = new ArrayList<>();
+        for (int i = 0; i < streamCount; i++) {
+            assigned.add(new TreeMap<>());
+        }
+
+        for (PlannedInstance instance : instances) {
+            int target = 0;
+            for (int i = 1; i < streamCount; i++) {
+                if (load[i] < load[target]) {
+                    target = i;
+                }
+            }
+            load[target] += instance.size;
+
+            List<String> ids = assigned.get(target).get(instance.groupIndex);
+            if (ids == null) {
+                ids = new ArrayList<>();
+                assigned.get(target).put(instance.groupIndex, ids);
+            }
+            ids.add(instance.id);
+        }
+
+        boolean[] formPlanned = formExists.clone();
+        List<List<StreamUnit>> plan = new ArrayList<>();
+        for (Map<Integer, List<String>> stream : assigned) {
+            List<StreamUnit> units = new ArrayList<>();
+            for (Map.Entry<Integer, List<String>> entry : stream.entrySet()) {
+                int groupIndex = entry.getKey();
+                units.add(new StreamUnit(groupIndex, !formPlanned[groupIndex], entry.getValue()));
+                formPlanned[groupIndex] = true;
+            }
+            plan.add(units);
+        }
+        return plan;
+    }
+
+    /**
+     * Waits for the additional connections the receiver opens once it knows the stream
+     * count. They arrive through the job's acceptor, which hands them over with
+     * {@link #join}. The first stream is always the connection used for the negotiation.
+     */
+    private List<FileSender> openStreams(int streamCount, boolean verify, LinkTuning tuning)
+            throws IOException {
+        boolean compress = (capabilities & Protocol.CAP_COMPRESSION) != 0
+                && PreferenceManager.getDefaultSharedPreferences(context)
+                .getBoolean(PreferenceKeys.KEY_TRANSFER_COMPRESSION, false);
+        List<FileSender> senders = new ArrayList<>();
+        senders.add(new FileSender(writer, reader, socket, bufferPool, compress, verify));
+
+        for (int i = 1; i < streamCount; i++) {
+            Socket stream;
+            try {
+                stream = joined.poll(JOIN_TIMEOUT, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+            if (stream == null) {
+                throw new SocketTimeoutException("Stream " + i + " did not join");
+            }
+            streams.add(stream);
+            tuning.apply(stream);
+            FrameWriter out = new FrameWriter(new BufferedOutputStream(stream.getOutputStream()));
+            FrameReader in = new FrameReader(new BufferedInputStream(stream.getInputStream()));
+            senders.add(new FileSender(out, in, stream, bufferPool, compress, verify));
+        }
+        for (FileSender sender : senders) {
+            sender.setBufferSize(tuning.getCopyBufferSize());
+        }
+        return senders;
+    }
+
+    private void sendStreams(List<FormGroup> groups, List<List<StreamUnit>> plan,
+                             List<FileSender> senders) throws IOException {
+        if (plan.size() == 1) {
+            sendUnits(senders.get(0), groups, plan.get(0));
+            return;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(plan.size());
+        try {
+            List<Future<Void>> futures = new ArrayList<>();
+            for (int i = 0; i < plan.size(); i++) {
+                FileSender sender = senders.get(i);
+                List<StreamUnit> units = plan.get(i);
+                futures.add(executor.submit(() -> {
+                    sendUnits(sender, groups, units);
+                    return null;
+                }));
+            }
+
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Sends the units of one stream. The share rows of its instances are logged as the
+     * receiver acknowledges them, and the rest are waited for once the stream ended.
+     */
+    private void sendUnits(FileSender sender, List<FormGroup> groups, List<StreamUnit> units) throws IOException {
+        FrameWriter out = sender.getWriter();
+        List<ContentValues> sent = new ArrayList<>();
+        for (StreamUnit unit : units) {
+            FormGroup group = groups.get(unit.groupIndex);
+            out.begin(Protocol.UNIT);
+            out.writeVarInt(unit.groupIndex);
+            out.end();
+
+            if (unit.sendForm) {
+                sendForm(sender, group);
+                Timber.d("Form Sent");
+            }
+
+            Timber.d("Sending Instances");
+            sendInstances(sender, unit.instanceIds, sent);
+            Timber.d("Instanes sent");
+        }
+        sender.finish();
+        logAcknowledged(sender, sent, true);
+    }
+
+    /**
+     * Logs the share rows of the instances the receiver acknowledged, which come in the
+     * order they were sent, and removes them from {@code unacknowledged}. A receiver that
+     * does not acknowledge has its rows logged once the stream ended without error.
+     */
+    private void logAcknowledged(FileSender sender, List<ContentValues> unacknowledged,
+                                 boolean finished) throws IOException {
+        int count;
+        if (acknowledged) {
+            count = finished ? sender.awaitAcks(unacknowledged.size()) : sender.pollAcks();
+        } else {
+            count = finished ? unacknowledged.size() : 0;
+        }
+        if (count > unacknowledged.size()) {
+            throw new ProtocolException(count + " instances acknowledged but only "
+                    + unacknowledged.size() + " sent");
+        }
+
+        List<ContentValues> rows = unacknowledged.subList(0, count);
+        transferLog.log(new ArrayList<>(rows));
+        rows.clear();
+    }
+
+    private void sendForm(FileSender sender, FormGroup group) throws IOException {
+        FrameWriter out = sender.getWriter();
+        String formId = group.formId;
+        String formVersion = group.formVersion;
+        String[] selectionArgs;
+        String selection;
+
+        if (formVersion == null) {
+            selectionArgs = new String[]{formId};
+            selection = FormsProviderAPI.FormsColumns.JR_FORM_ID + "=? AND "
+                    + FormsProviderAPI.FormsColumns.JR_VERSION + " IS NULL";
+        } else {
+            selectionArgs = new String[]{formId, formVersion};
+            selection = FormsProviderAPI.FormsColumns.JR_FORM_ID + "=? AND "
+                    + FormsProviderAPI.FormsColumns.JR_VERSION + "=?";
+        }
+
+        try (Cursor cursor = new FormsDao().getFormsCursor(null, selection, selectionArgs, null)) {
+            cursor.moveToPosition(-1);
+
+            if (cursor.moveToNext()) {
+                String displayName = cursor.getString(cursor.getColumnIndex(FormsProviderAPI.FormsColumns.DISPLAY_NAME));
+                String formMediaPath = cursor.getString(cursor.getColumnIndex(FormsProviderAPI.FormsColumns.FORM_MEDIA_PATH));
+                String formFilePath = cursor.getString(cursor.getColumnIndex(FormsProviderAPI.FormsColumns.FORM_FILE_PATH));
+                String submissionUri = cursor.getString(cursor.getColumnIndex(FormsProviderAPI.FormsColumns.SUBMISSION_URI));
+
+                File[] formRes = getFormResources(formMediaPath);
+                if (formRes == null) {
+                    formRes = new File[0];
+                }
+
+                out.begin(Protocol.FORM);
+                out.writeString(displayName);
+                out.writeString(formId);
+                out.writeString(formVersion);
+                out.writeString(submissionUri);
+                out.writeVarInt(formRes.length);
+                out.end();
+
+                // form file sent
+                sender.send(new File(formFilePath));
+
+                // send form resources
+                sendFormResources(sender, formRes, group.receiverMedia);
+            }
+        }
+    }
+
+    /**
+     * Sends the media of a form. Files whose content the receiver already holds for another
+     * version of the form are only named, and the receiver copies them locally.
+     */
+    private void sendFormResources(FileSender sender, File[] formRes, Set<String> receiverMedia)
+            throws IOException {
+        Map<String, String> digests = receiverMedia.isEmpty()
+                ? Collections.<String, String>emptyMap()
+                : new FileDigestCache(context).getDigests(Arrays.asList(formRes));
+
+        FrameWriter out = sender.getWriter();
+        for (File f : formRes) {
+            String digest = digests.get(f.getAbsolutePath());
+            if (digest != null && receiverMedia.contains(digest)) {
+                out.begin(Protocol.MEDIA_REUSE);
+                out.writeString(f.getName());
+                out.writeString(digest);
+                out.end();
+            } else {
+                sender.send(f);
+            }
+        }
+    }
+
+    private void sendInstances(FileSender sender, List<String> instanceIds,
+                               List<ContentValues> sent) throws IOException {
+        StringBuilder selectionBuf = new StringBuilder(InstanceProviderAPI.InstanceColumns._ID + " IN (");
+        String[] selectionArgs = new String[instanceIds.size()];
+        for (int i = 0; i < instanceIds.size(); i++) {
+            if (i > 0) {
+                selectionBuf.append(",");
+            }
+            selectionBuf.append("?");
+            selectionArgs[i] = instanceIds.get(i);
+        }
+
+        selectionBuf.append(")");
+        String selection = selectionBuf.toString();
+        boolean batching = (capabilities & Protocol.CAP_BATCH) != 0;
+        List<BatchedInstance> batch = new ArrayList<>();
+        long batchSize = 0;
+        try (Cursor c = new InstancesDao().getInstancesCursor(selection, selectionArgs)) {
+            if (c != null && c.getCount() > 0) {
+                c.moveToPosition(-1);
+                while (c.moveToNext()) {
+                    String displayName = c.getString(
+                            c.getColumnIndex(InstanceProviderAPI.InstanceColumns.DISPLAY_NAME));
+                    String submissionUri = c.getString(
+                            c.getColumnIndex(InstanceProviderAPI.InstanceColumns.SUBMISSION_URI));
+
+                    long id = c.getLong(c.getColumnIndex(InstanceProviderAPI.InstanceColumns._ID));
+                    String instance = c.getString(
+                            c.getColumnIndex(InstanceProviderAPI.InstanceColumns.INSTANCE_FILE_PATH));
+                    List<File> files = UploadManifest.getInstanceFiles(instance);
+                    long size = UploadManifest.getSize(files);
+
+                    // partially received instances are continued file by file, and older
+                    // revisions are updated in place
+                    if (batching && size <= MAX_BATCHED_INSTANCE
+                            && !resumeOffsets.containsKey(String.valueOf(id))
+                            && !revisions.containsKey(String.valueOf(id))) {
+                        batch.add(new BatchedInstance(id, displayName, submissionUri, files));
+                        batchSize += size;
+                        if (batchSize >= MAX_BATCH_SIZE || batch.size() >= MAX_BATCH_COUNT) {
+                            sendBatch(sender, batch, sent);
+                            batch.clear();
+                            batchSize = 0;
+                        }
+                        continue;
+                    }
+
+                    rxEventBus.post(new UploadEvent(UploadEvent.Status.UPLOADING, progress.incrementAndGet(), total));
+                    sendInstance(sender, String.valueOf(id), displayName, submissionUri, files);
+
+                    // add row in share table
+                    ContentValues values = new ContentValues();
+                    values.put(INSTANCE_ID, id);
+                    values.put(TRANSFER_STATUS, STATUS_FORM_SENT);
+                    sent.add(values);
+                    logAcknowledged(sender, sent, false);
+                }
+            }
+        }
+
+        if (!batch.isEmpty()) {
+            sendBatch(sender, batch, sent);
+        }
+    }
+
+    /**
+     * Sends small instances together in one frame that carries their metadata and the
+     * content of their files, so they cost one write and one progress event instead of one
+     * of each per instance. When the stream deflates or verifies files, the frame carries
+     * the metadata only and the files follow it through the file sender, so batched XML is
+     * compressed, checksummed and resent like any other file.
+     */
+    private void sendBatch(FileSender sender, List<BatchedInstance> batch,
+                           List<ContentValues> sent) throws IOException {
+        boolean inline = !sender.isCompressing() && !sender.isVerifying();
+        FrameWriter out = sender.getWriter();
+        out.begin(Protocol.BATCH);
+        out.writeVarInt(batch.size());
+        out.writeBoolean(inline);
+        for (BatchedInstance instance : batch) {
+            out.writeString(String.valueOf(instance.id));
+            out.writeString(instance.displayName);
+            out.writeString(instance.submissionUri);
+            out.writeVarInt(instance.files.size());
+            if (!inline) {
+                continue;
+            }
+            for (File file : instance.files) {
+                try (FileInputStream fis = new FileInputStream(file)) {
+                    int length = (int) fis.getChannel().size();
+                    out.writeString(file.getName());
+                    out.writeVarInt(length);
+                    out.writeBytes(fis, length);
+                }
+            }
+        }
+        out.end();
+        if (!inline) {
+            for (BatchedInstance instance : batch) {
+                for (File file : instance.files) {
+                    sender.send(file);
+                }
+            }
+        }
+        Timber.d("Batch of %d instances sent", batch.size());
+
+        rxEventBus.post(new UploadEvent(UploadEvent.Status.UPLOADING,
+                progress.addAndGet(batch.size()), total));
+        for (BatchedInstance instance : batch) {
+            ContentValues values = new ContentValues();
+            values.put(INSTANCE_ID, instance.id);
+            values.put(TRANSFER_STATUS, STATUS_FORM_SENT);
+            sent.add(values);
+        }
+        logAcknowledged(sender, sent, false);
+    }
+
+    private File[] getFormResources(String formResPath) {
+        File directory = new File(formResPath);
+        return directory.listFiles();
+    }
+
+    /**
+     * Sends an instance frame followed by the files of the instance. Files the receiver
+     * already holds from an earlier attempt are continued from the length it reported, and
+     * files it holds an older revision of are sent as deltas.
+     */
+    private void sendInstance(FileSender sender, String id, String displayName,
+                              String submissionUri, List<File> files) throws IOException {
+        Timber.d("Files : " + files);
+        FrameWriter out = sender.getWriter();
+        out.begin(Protocol.INSTANCE);
+        out.writeString(id);
+        out.writeString(displayName);
+        out.writeString(submissionUri);
+        out.writeVarInt(files.size());
+        out.end();
+
+        Map<String, Long> offsets = resumeOffsets.get(id);
+        Map<String, BlockSignature> signatures = revisions.get(id);
+        for (File file : files) {
+            Timber.d("Name " + file.getName() + " " + file.length());
+            BlockSignature basis = signatures == null ? null : signatures.get(file.getName());
+            if (basis != null && basis.getBlockCount() > 0) {
+                sender.sendDelta(file, basis);
+                continue;
+            }
+            Long offset = offsets == null ? null : offsets.get(file.getName());
+            sender.send(file, offset == null ? 0 : offset);
+        }
+    }
+
+    /**
+     * Part of a form group that is sent over one stream.
+     */
+    private static class StreamUnit {
+        final int groupIndex;
+        final boolean sendForm;
+        final List<String> instanceIds;
+
+        StreamUnit(int groupIndex, boolean sendForm, List<String> instanceIds) {
+            this.groupIndex = groupIndex;
+            this.sendForm = sendForm;
+            this.instanceIds = instanceIds;
+        }
+    }
+
+    private static class BatchedInstance {
+        final long id;
+        final String displayName;
+        final String submissionUri;
+        final List<File> files;
+
+        BatchedInstance(long id, String displayName, String submissionUri, List<File> files) {
+            this.id = id;
+            this.displayName = displayName;
+            this.submissionUri = submissionUri;
+            this.files = files;
+        }
+    }
+
+    private static class PlannedInstance {
+        final int groupIndex;
+        final String id;
+        final long size;
+
+        PlannedInstance(int groupIndex, String id, long size) {
+            this.groupIndex = groupIndex;
+            this.id = id;
+            this.size = size;
+        }
+    }
+}
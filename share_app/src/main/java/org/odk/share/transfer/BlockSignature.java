@@ -0,0 +1,163 @@
+package org.odk.share.transfer;
+
+import org.odk.share.utilities.DigestUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Block checksums of a file the receiver holds, sent so that the sender of a newer revision
+ * only sends what changed. As in rsync, every full block has a weak checksum that can be
+ * rolled along the new file one byte at a time, and a strong one that confirms a weak match.
+ * Blocks are about the square root of the file long, which keeps both the signature and the
+ * literal data around a changed byte small.
+ */
+public class BlockSignature {
+
+    private static final int MIN_BLOCK_SIZE = 2 * 1024;
+    private static final int MAX_BLOCK_SIZE = FileSender.CHUNK_SIZE;
+
+    private final int blockSize;
+    private final int[] weak;
+    private final long[] strong;
+    // first block with each weak checksum, later ones are chained through next
+    private Map<Integer, Integer> index;
+    private int[] next;
+
+    BlockSignature(int blockSize, int[] weak, long[] strong) {
+        this.blockSize = blockSize;
+        this.weak = weak;
+        this.strong = strong;
+    }
+
+    public static BlockSignature compute(File file) throws IOException {
+        int blockSize = getBlockSize(file.length());
+        int count = (int) (file.length() / blockSize);
+        int[] weak = new int[count];
+        long[] strong = new long[count];
+        MessageDigest md5 = DigestUtils.getDigest("MD5");
+        byte[] block = new byte[blockSize];
+        try (FileInputStream fis = new FileInputStream(file)) {
+            for (int i = 0; i < count; i++) {
+                int read = 0;
+                while (read < blockSize) {
+                    int n = fis.read(block, read, blockSize - read);
+                    if (n == -1) {
+                        throw new IOException(file.getName() + " shrank while it was read");
+                    }
+                    read += n;
+                }
+                weak[i] = weak(block, 0, blockSize);
+                strong[i] = strong(md5, block, 0, blockSize);
+            }
+        }
+        return new BlockSignature(blockSize, weak, strong);
+    }
+
+    public static BlockSignature read(FrameReader reader) throws IOException {
+        int blockSize = reader.readVarInt();
+        if (blockSize < MIN_BLOCK_SIZE || blockSize > MAX_BLOCK_SIZE) {
+            throw new ProtocolException("Block size " + blockSize + " out of range");
+        }
+        int count = reader.readVarInt();
+        // every block takes twelve bytes of the frame
+        if (count > reader.getLength() / 12) {
+            throw new ProtocolException("Frame ends inside a signature of " + count + " blocks");
+        }
+        int[] weak = new int[count];
+        long[] strong = new long[count];
+        for (int i = 0; i < count; i++) {
+            weak[i] = reader.readInt();
+            strong[i] = reader.readLong();
+        }
+        return new BlockSignature(blockSize, weak, strong);
+    }
+
+    public void write(FrameWriter writer) {
+        writer.writeVarInt(blockSize);
+        writer.writeVarInt(weak.length);
+        for (int i = 0; i < weak.length; i++) {
+            writer.writeInt(weak[i]);
+            writer.writeLong(strong[i]);
+        }
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public int getBlockCount() {
+        return weak.length;
+    }
+
+    /**
+     * The block whose content equals the block of the buffer at {@code offset}, -1 if there
+     * is none. The strong checksum is only computed once the weak one matches.
+     */
+    int find(int weakChecksum, byte[] buffer, int offset, MessageDigest md5) {
+        if (index == null) {
+            index = new HashMap<>();
+            next = new int[weak.length];
+            for (int i = weak.length - 1; i >= 0; i--) {
+                Integer first = index.put(weak[i], i);
+                next[i] = first == null ? -1 : first;
+            }
+        }
+
+        Integer candidate = index.get(weakChecksum);
+        if (candidate == null) {
+            return -1;
+        }
+        long strongChecksum = strong(md5, buffer, offset, blockSize);
+        for (int i = candidate; i != -1; i = next[i]) {
+            if (strong[i] == strongChecksum) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    static int getBlockSize(long length) {
+        long size = Long.highestOneBit(Math.max(1, (long) Math.sqrt(length)));
+        return (int) Math.max(MIN_BLOCK_SIZE, Math.min(MAX_BLOCK_SIZE, size));
+    }
+
+    /**
+     * Adler-style checksum of rsync: the sum of the bytes in the low half and the sum of
+     * the running sums in the high half, both modulo 2^16.
+     */
+    static int weak(byte[] buffer, int offset, int length) {
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i < length; i++) {
+            int value = buffer[offset + i] & 0xFF;
+            a += value;
+            b += (length - i) * value;
+        }
+        return (a & 0xFFFF) | (b << 16);
+    }
+
+    /**
+     * Moves a weak checksum of {@code length} bytes one byte ahead.
+     */
+    static int roll(int checksum, byte out, byte in, int length) {
+        int a = ((checksum & 0xFFFF) - (out & 0xFF) + (in & 0xFF)) & 0xFFFF;
+        int b = ((checksum >>> 16) - length * (out & 0xFF) + a) & 0xFFFF;
+        return a | (b << 16);
+    }
+
+    static long strong(MessageDigest md5, byte[] buffer, int offset, int length) {
+        md5.update(buffer, offset, length);
+        byte[] hash = md5.digest();
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = value << 8 | (hash[i] & 0xFF);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,46 @@
+package org.odk.share.transfer;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Byte arrays shared by the streams of a session. A stream takes the buffers it needs when
+ * it first needs them and gives them back when it is closed, so a session allocates its
+ * buffers once per stream rather than once per file. Heap arrays are pooled rather than
+ * direct buffers because the stream and checksum APIs available on every supported
+ * platform only take arrays.
+ */
+public class BufferPool {
+
+    // buffers kept per size beyond what is in use
+    private static final int MAX_IDLE = 8;
+
+    private final Map<Integer, ArrayDeque<byte[]>> idle = new HashMap<>();
+
+    /**
+     * A buffer of exactly the given size.
+     */
+    public synchronized byte[] acquire(int size) {
+        ArrayDeque<byte[]> buffers = idle.get(size);
+        byte[] buffer = buffers == null ? null : buffers.poll();
+        return buffer != null ? buffer : new byte[size];
+    }
+
+    /**
+     * Gives a buffer back. Null is ignored, so a stream can release buffers it never took.
+     */
+    public synchronized void release(byte[] buffer) {
+        if (buffer == null) {
+            return;
+        }
+        ArrayDeque<byte[]> buffers = idle.get(buffer.length);
+        if (buffers == null) {
+            buffers = new ArrayDeque<>();
+            idle.put(buffer.length, buffers);
+        }
+        if (buffers.size() < MAX_IDLE) {
+            buffers.push(buffer);
+        }
+    }
+}
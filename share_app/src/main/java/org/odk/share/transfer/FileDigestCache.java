@@ -0,0 +1,61 @@
+package org.odk.share.transfer;
+
+import android.content.Context;
+
+import org.odk.share.database.ShareDatabaseHelper;
+import org.odk.share.dto.FileDigest;
+import org.odk.share.utilities.DigestUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import timber.log.Timber;
+
+/**
+ * Content digests of files, cached in the share database by path. A digest is computed again
+ * only once the size or modification date of its file changes.
+ */
+public class FileDigestCache {
+
+    private final ShareDatabaseHelper helper;
+
+    public FileDigestCache(Context context) {
+        helper = ShareDatabaseHelper.getInstance(context);
+    }
+
+    /**
+     * Digests of the given files, by path. Files that cannot be read are left out.
+     */
+    public Map<String, String> getDigests(List<File> files) {
+        List<String> paths = new ArrayList<>();
+        for (File file : files) {
+            paths.add(file.getAbsolutePath());
+        }
+        Map<String, FileDigest> cached = helper.getFileDigests(paths);
+
+        Map<String, String> digests = new HashMap<>();
+        List<FileDigest> computed = new ArrayList<>();
+        for (File file : files) {
+            String path = file.getAbsolutePath();
+            FileDigest digest = cached.get(path);
+            if (digest == null || !digest.matches(file.length(), file.lastModified())) {
+                try {
+                    digest = new FileDigest(path, DigestUtils.sha256(file), file.length(),
+                            file.lastModified());
+                    computed.add(digest);
+                } catch (IOException e) {
+                    Timber.e(e);
+                    continue;
+                }
+            }
+            digests.put(path, digest.getDigest());
+        }
+
+        helper.saveFileDigests(computed);
+        return digests;
+    }
+}
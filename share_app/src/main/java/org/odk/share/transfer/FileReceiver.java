@@ -0,0 +1,442 @@
+package org.odk.share.transfer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import timber.log.Timber;
+
+/**
+ * Reads files from one transfer stream. The announced file size tells exactly how many
+ * bytes belong to the file, so once the bytes already read ahead into the stream buffer are
+ * written out, the rest is spliced from the {@link SocketChannel} to disk with
+ * {@link FileChannel#transferFrom}. Plain sockets fall back to copying through a large buffer.
+ * Files the sender chose to deflate arrive as chunks that are inflated one by one.
+ *
+ * <p>With verification on, a CRC32 of the content is computed while it is written and
+ * compared with the checksum frame that follows the file. Files that do not match are asked
+ * for again once the sender has finished the stream.
+ *
+ * <p>A delta is rebuilt next to the old revision it refers to from the blocks it names and
+ * the bytes it carries, and replaces that revision once its checksum matches.
+ */
+public class FileReceiver {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final StreamBuffer buffer;
+    private final FrameReader reader;
+    private final Socket socket;
+    private final SocketChannel channel;
+    private boolean zeroCopy;
+    private Inflater inflater;
+    // taken from the session's pool on first use and given back on close
+    private final BufferPool pool;
+    private byte[] raw;
+    private byte[] copyBuffer;
+    private ByteBuffer wrapper;
+    private boolean verify;
+    private boolean acknowledge;
+    // replies to the sender are all numbers, so a writer of its own is fine here
+    private FrameWriter replies;
+    private final CRC32 checksum = new CRC32();
+    // every file received on this stream in order, and the indexes of those that failed
+    private final List<File> received = new ArrayList<>();
+    private List<Integer> failed = new ArrayList<>();
+
+    public FileReceiver(Socket socket, BufferPool pool) throws IOException {
+        this(socket, socket.getInputStream(), pool);
+    }
+
+    /**
+     * Reads from {@code in}, which holds whatever was already taken from the socket followed
+     * by the socket's own input. Those first bytes must be consumed before any file content
+     * is spliced straight from the channel.
+     */
+    public FileReceiver(Socket socket, InputStream in, BufferPool pool) {
+        this.socket = socket;
+        this.pool = pool;
+        buffer = new StreamBuffer(in);
+        reader = new FrameReader(buffer);
+        channel = socket.getChannel();
+        zeroCopy = channel != null;
+    }
+
+    public FrameReader getReader() {
+        return reader;
+    }
+
+    public void setVerify(boolean verify) {
+        this.verify = verify;
+    }
+
+    public boolean isVerifying() {
+        return verify;
+    }
+
+    public void setAcknowledge(boolean acknowledge) {
+        this.acknowledge = acknowledge;
+    }
+
+    /**
+     * Tells the sender that {@code count} more instances of this stream are saved for good.
+     * Instances are saved in groups that can span streams, so this is called from whichever
+     * stream saved them.
+     */
+    public synchronized void acknowledge(int count) throws IOException {
+        if (!acknowledge || count == 0) {
+            return;
+        }
+        FrameWriter writer = getReplies();
+        writer.begin(Protocol.ACK);
+        writer.writeVarInt(count);
+        writer.end();
+        writer.flush();
+    }
+
+    /**
+     * Reads a file frame followed by the content of the file and stores it in the given
+     * directory.
+     *
+     * @return the name of the received file
+     */
+    public String receive(String path) throws IOException {
+        reader.expect(Protocol.FILE);
+        return receiveFrame(path);
+    }
+
+    /**
+     * Stores the file described by the file frame that was just read in the given directory.
+     * The first {@code offset} bytes of an existing file are kept, so a file cut off by an
+     * earlier session is continued rather than received again.
+     *
+     * @return the name of the received file
+     */
+    public String receiveFrame(String path) throws IOException {
+        if (reader.getType() != Protocol.FILE) {
+            throw new ProtocolException("Expected a file frame but got " + reader.getType());
+        }
+        String filename = reader.readString();
+        long fileSize = reader.readVarLong();
+        long offset = reader.readVarLong();
+        boolean deflated = reader.readBoolean();
+        Timber.d("Size of file " + filename + " " + fileSize + " from " + offset);
+        File shareDir = new File(path);
+
+        if (!shareDir.exists()) {
+            Timber.d("Directory created " + shareDir.getPath() + " " + shareDir.mkdirs());
+        }
+
+        File newFile = new File(shareDir, filename);
+        checksum.reset();
+        try (RandomAccessFile file = new RandomAccessFile(newFile, "rw")) {
+            file.setLength(offset);
+            FileChannel fileChannel = file.getChannel();
+            fileChannel.position(offset);
+            if (deflated) {
+                inflate(fileChannel, fileSize - offset);
+            } else {
+                receiveRaw(fileChannel, offset, fileSize);
+            }
+        }
+        if (verify) {
+            reader.expect(Protocol.CHECKSUM);
+            if (reader.readVarLong() != checksum.getValue()) {
+                Timber.w("Checksum mismatch for %s", newFile.getPath());
+                failed.add(received.size());
+            }
+            received.add(newFile);
+        }
+        Timber.d("File created and saved " + newFile.getAbsolutePath() + " " + newFile.getName());
+        return filename;
+    }
+
+    /**
+     * Rebuilds the file described by the delta frame that was just read from the revision of
+     * the same name in the given directory. The old revision is kept if the result does not
+     * match the checksum the sender computed.
+     *
+     * @return the name of the received file
+     */
+    public String receiveDelta(String path) throws IOException {
+        if (reader.getType() != Protocol.DELTA) {
+            throw new ProtocolException("Expected a delta frame but got " + reader.getType());
+        }
+        String filename = reader.readString();
+        long fileSize = reader.readVarLong();
+        int blockSize = reader.readVarInt();
+        File basis = new File(path, filename);
+        File target = new File(path, filename + ".delta");
+        if (copyBuffer == null) {
+            copyBuffer = pool.acquire(BUFFER_SIZE);
+        }
+
+        CRC32 crc = new CRC32();
+        try (RandomAccessFile old = new RandomAccessFile(basis, "r");
+             RandomAccessFile file = new RandomAccessFile(target, "rw")) {
+            file.setLength(0);
+            FileChannel fileChannel = file.getChannel();
+            long written = 0;
+            while (written < fileSize) {
+                int type = reader.next();
+                if (type == Protocol.DELTA_COPY) {
+                    long from = (long) reader.readVarInt() * blockSize;
+                    long count = (long) reader.readVarInt() * blockSize;
+                    if (from + count > old.length() || written + count > fileSize) {
+                        throw new ProtocolException("Copy past the end of " + filename);
+                    }
+                    old.seek(from);
+                    while (count > 0) {
+                        int n = (int) Math.min(copyBuffer.length, count);
+                        old.readFully(copyBuffer, 0, n);
+                        crc.update(copyBuffer, 0, n);
+                        ByteBuffer bytes = wrap(copyBuffer, n);
+                        while (bytes.hasRemaining()) {
+                            fileChannel.write(bytes);
+                        }
+                        count -= n;
+                        written += n;
+                    }
+                } else if (type == Protocol.CHUNK_RAW) {
+                    if (written + reader.getLength() > fileSize) {
+                        throw new ProtocolException("Chunk runs past the end of " + filename);
+                    }
+                    crc.update(reader.getPayload(), 0, reader.getLength());
+                    ByteBuffer bytes = wrap(reader.getPayload(), reader.getLength());
+                    while (bytes.hasRemaining()) {
+                        fileChannel.write(bytes);
+                    }
+                    written += reader.getLength();
+                } else {
+                    throw new ProtocolException("Expected a delta part but got " + type);
+                }
+            }
+        }
+
+        reader.expect(Protocol.CHECKSUM);
+        if (reader.readVarLong() != crc.getValue()) {
+            Timber.d("Mismatching delta deleted %s", target.delete());
+            throw new IOException("Delta of " + filename + " does not match its checksum");
+        }
+        // renaming replaces the old revision in one step where the file system allows it
+        if (!target.renameTo(basis) && !(basis.delete() && target.renameTo(basis))) {
+            throw new IOException("Could not replace " + basis.getPath());
+        }
+        Timber.d("File rebuilt from delta " + basis.getAbsolutePath());
+        return filename;
+    }
+
+    /**
+     * Called once the end frame of the stream was read. With verification on, tells the
+     * sender which files failed and receives them again until none fail. Files that still
+     * fail after {@link Protocol#MAX_RETRIES} rounds are deleted.
+     */
+    public void finish() throws IOException {
+        if (!verify) {
+            return;
+        }
+
+        FrameWriter writer = getReplies();
+        for (int round = 0; ; round++) {
+            List<Integer> retry = failed;
+            failed = new ArrayList<>();
+            synchronized (this) {
+                writer.begin(Protocol.VERIFIED);
+                writer.writeVarInt(retry.size());
+                for (int index : retry) {
+                    writer.writeVarInt(index);
+                }
+                writer.end();
+                writer.flush();
+            }
+            if (retry.isEmpty()) {
+                return;
+            }
+
+            if (round == Protocol.MAX_RETRIES) {
+                for (int index : retry) {
+                    Timber.d("Corrupt %s deleted %s", received.get(index).getPath(),
+                            received.get(index).delete());
+                }
+                throw new IOException(retry.size() + " files failed verification");
+            }
+            for (int index : retry) {
+                receive(received.get(index).getParent());
+            }
+            reader.expect(Protocol.END);
+        }
+    }
+
+    private synchronized FrameWriter getReplies() throws IOException {
+        if (replies == null) {
+            replies = new FrameWriter(new BufferedOutputStream(socket.getOutputStream()));
+        }
+        return replies;
+    }
+
+    /**
+     * Releases the inflater of this stream and gives its buffers back to the pool.
+     */
+    public void close() {
+        if (inflater != null) {
+            inflater.end();
+            inflater = null;
+        }
+        pool.release(raw);
+        raw = null;
+        pool.release(copyBuffer);
+        copyBuffer = null;
+        wrapper = null;
+    }
+
+    private void receiveRaw(FileChannel fileChannel, long offset, long fileSize)
+            throws IOException {
+        if (verify) {
+            // every byte has to be seen to be checksummed
+            copy(fileChannel, fileSize - offset);
+            return;
+        }
+        long position = offset + buffer.drainTo(fileChannel, fileSize - offset);
+
+        if (zeroCopy) {
+            while (position < fileSize) {
+                long received = fileChannel.transferFrom(channel, position, fileSize - position);
+                if (received <= 0) {
+                    break;
+                }
+                position += received;
+            }
+            // transferFrom writes at explicit positions without moving the channel
+            fileChannel.position(position);
+        }
+
+        if (position < fileSize) {
+            copy(fileChannel, fileSize - position);
+        }
+    }
+
+    /**
+     * Reads chunk frames until {@code remaining} bytes of file content were written. Every
+     * chunk is either raw or deflated on its own.
+     */
+    private void inflate(FileChannel fileChannel, long remaining) throws IOException {
+        if (inflater == null) {
+            inflater = new Inflater();
+        }
+        if (raw == null) {
+            raw = pool.acquire(FileSender.CHUNK_SIZE);
+        }
+
+        while (remaining > 0) {
+            int type = reader.next();
+            ByteBuffer bytes;
+            if (type == Protocol.CHUNK_DEFLATED) {
+                bytes = wrap(raw, inflateChunk(reader.getPayload(), reader.getLength(), raw));
+            } else if (type == Protocol.CHUNK_RAW) {
+                bytes = wrap(reader.getPayload(), reader.getLength());
+            } else {
+                throw new ProtocolException("Expected a chunk frame but got " + type);
+            }
+            if (bytes.remaining() > remaining) {
+                throw new IOException("Chunk runs past the end of the file");
+            }
+            remaining -= bytes.remaining();
+            if (verify) {
+                checksum.update(bytes.array(), bytes.position(), bytes.remaining());
+            }
+            while (bytes.hasRemaining()) {
+                fileChannel.write(bytes);
+            }
+        }
+    }
+
+    private int inflateChunk(byte[] packed, int length, byte[] raw) throws IOException {
+        inflater.reset();
+        inflater.setInput(packed, 0, length);
+        int n = 0;
+        try {
+            while (!inflater.finished()) {
+                int inflated = inflater.inflate(raw, n, raw.length - n);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary()
+                        || n == raw.length)) {
+                    throw new IOException("Corrupt deflated chunk");
+                }
+                n += inflated;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException(e);
+        }
+        return n;
+    }
+
+    private void copy(FileChannel fileChannel, long remaining) throws IOException {
+        if (copyBuffer == null) {
+            copyBuffer = pool.acquire(BUFFER_SIZE);
+        }
+        byte[] buf = copyBuffer;
+        while (remaining > 0) {
+            int n = buffer.read(buf, 0, (int) Math.min(buf.length, remaining));
+            if (n == -1) {
+                throw new EOFException("Stream ended before the end of the file");
+            }
+            if (verify) {
+                checksum.update(buf, 0, n);
+            }
+            ByteBuffer bytes = wrap(buf, n);
+            while (bytes.hasRemaining()) {
+                fileChannel.write(bytes);
+            }
+            remaining -= n;
+        }
+    }
+
+    /**
+     * The first {@code length} bytes of the array as a buffer. The wrapper is reused as long
+     * as the array stays the same, so writing a chunk allocates nothing.
+     */
+    private ByteBuffer wrap(byte[] array, int length) {
+        if (wrapper == null || wrapper.array() != array) {
+            wrapper = ByteBuffer.wrap(array);
+        }
+        wrapper.clear();
+        wrapper.limit(length);
+        return wrapper;
+    }
+
+    /**
+     * Buffered stream that can hand its read-ahead bytes to a channel, so they are not lost
+     * when the rest of a file is read straight from the socket channel.
+     */
+    private static class StreamBuffer extends BufferedInputStream {
+
+        StreamBuffer(InputStream in) {
+            super(in, BUFFER_SIZE);
+        }
+
+        synchronized long drainTo(FileChannel target, long max) throws IOException {
+            int n = (int) Math.min(count - pos, max);
+            if (n > 0) {
+                ByteBuffer bytes = ByteBuffer.wrap(buf, pos, n);
+                while (bytes.hasRemaining()) {
+                    target.write(bytes);
+                }
+                pos += n;
+            }
+            return n;
+        }
+    }
+}
@@ -0,0 +1,546 @@
+package org.odk.share.transfer;
+
+import org.odk.share.utilities.DigestUtils;
+import org.odk.share.utilities.FileUtils;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import timber.log.Timber;
+
+/**
+ * Writes files to one transfer stream. When the socket is backed by a {@link SocketChannel}
+ * the file bytes are handed to the kernel with {@link FileChannel#transferTo} and never
+ * copied through user space. Plain sockets, and platforms where transferTo makes no
+ * progress, fall back to copying through a buffer.
+ *
+ * <p>With compression on, files that are likely to shrink are deflated in independent
+ * chunks of {@link #CHUNK_SIZE} bytes. Each chunk frame says whether it is deflated, so a
+ * chunk that does not shrink is sent as is, and compression stops for the rest of the stream
+ * once the link turns out to be faster than deflating.
+ *
+ * <p>With verification on, a CRC32 of the content is computed while it is sent and follows
+ * it in a checksum frame. The content then has to pass through user space, so zero-copy is
+ * not used for verified files, but the file is still read only once.
+ *
+ * <p>A file the receiver holds an older revision of can be sent as a delta against the
+ * {@link BlockSignature} of that revision: blocks found unchanged anywhere in the new file
+ * are named, and only the bytes in between are sent.
+ */
+public class FileSender {
+
+    static final int CHUNK_SIZE = 64 * 1024;
+    // deflate can grow incompressible input slightly
+    static final int MAX_DEFLATED_CHUNK = CHUNK_SIZE + 1024;
+
+    private static final int SAMPLE_SIZE = 4096;
+    // bytes of the new file a delta looks at between refills, several blocks at least
+    private static final int WINDOW_SIZE = 4 * CHUNK_SIZE;
+    // wire bytes to send before the link speed estimate is trusted over socket buffering
+    private static final long MIN_MEASURED_BYTES = 4 * 1024 * 1024;
+
+    private static final Set<String> COMPRESSIBLE = new HashSet<>(Arrays.asList(
+            "xml", "csv", "osm", "txt", "json", "geojson", "html", "js", "css"));
+    private static final Set<String> COMPRESSED = new HashSet<>(Arrays.asList(
+            "jpg", "jpeg", "png", "gif", "webp", "3gp", "3gpp", "mp4", "m4a", "mp3", "amr",
+            "aac", "ogg", "webm", "zip", "gz", "apk"));
+
+    private final FrameWriter writer;
+    // the peer's replies on this stream, verification results and acknowledgements
+    private final FrameReader reader;
+    private final OutputStream out;
+    private final SocketChannel channel;
+    private boolean zeroCopy;
+    private boolean compress;
+    private Deflater deflater;
+    private final boolean verify;
+    private final CRC32 checksum = new CRC32();
+    private int bufferSize = LinkTuning.DEFAULT.getCopyBufferSize();
+    // taken from the session's pool on first use and given back on close
+    private final BufferPool pool;
+    private ByteBuffer raw;
+    private byte[] packed;
+    private ByteBuffer copyBuffer;
+    private ByteBuffer window;
+    private MessageDigest md5;
+    // run of consecutive old blocks not yet sent as a copy frame
+    private int copyFrom;
+    private int copyCount;
+    // every file sent on this stream in order, so the receiver can ask for one by index
+    private final List<File> sent = new ArrayList<>();
+
+    // totals used to decide whether deflating still pays off on this link
+    private long wireBytes;
+    private long sendNanos;
+    private long deflateInBytes;
+    private long deflateOutBytes;
+    private long deflateNanos;
+
+    public FileSender(FrameWriter writer, FrameReader reader, Socket socket, BufferPool pool,
+                      boolean compress, boolean verify) {
+        this.writer = writer;
+        this.reader = reader;
+        this.pool = pool;
+        out = writer.getOutputStream();
+        this.compress = compress;
+        this.verify = verify;
+        channel = socket.getChannel();
+        zeroCopy = channel != null;
+    }
+
+    public FrameWriter getWriter() {
+        return writer;
+    }
+
+    /**
+     * Whether files that shrink are still deflated on this stream.
+     */
+    public boolean isCompressing() {
+        return compress;
+    }
+
+    public boolean isVerifying() {
+        return verify;
+    }
+
+    /**
+     * Size of the buffer used when file content is copied rather than spliced.
+     */
+    public void setBufferSize(int bufferSize) {
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * Sends a file frame with the name and length of the file followed by its content.
+     */
+    public void send(File file) throws IOException {
+        send(file, 0);
+    }
+
+    /**
+     * Sends a file frame with the name, length and start offset of the file followed by its
+     * content from that offset on. The receiver keeps the first {@code offset} bytes it
+     * already has. An offset past the end of the file means the file changed since, so it is
+     * sent whole.
+     */
+    public void send(File file, long offset) throws IOException {
+        long start = System.nanoTime();
+        long length = file.length();
+        if (offset > length) {
+            offset = 0;
+        }
+        boolean deflate = compress && offset < length && isCompressible(file);
+        writer.begin(Protocol.FILE);
+        writer.writeString(file.getName());
+        writer.writeVarLong(length);
+        writer.writeVarLong(offset);
+        writer.writeBoolean(deflate);
+        writer.end();
+
+        checksum.reset();
+        try (FileInputStream fis = new FileInputStream(file)) {
+            FileChannel fileChannel = fis.getChannel();
+            if (deflate) {
+                sendDeflated(fileChannel, offset, length);
+            } else {
+                sendRaw(fileChannel, offset, length);
+                wireBytes += length - offset;
+            }
+        } finally {
+            sendNanos += System.nanoTime() - start;
+        }
+
+        if (verify) {
+            writer.begin(Protocol.CHECKSUM);
+            writer.writeVarLong(checksum.getValue());
+            writer.end();
+            sent.add(file);
+        }
+    }
+
+    /**
+     * Ends the stream. With verification on, the receiver then names the files whose
+     * checksum did not match and those are sent again, whole, until none fail.
+     */
+    public void finish() throws IOException {
+        writer.begin(Protocol.END);
+        writer.end();
+        writer.flush();
+        if (!verify) {
+            return;
+        }
+
+        for (int round = 0; ; round++) {
+            reader.expect(Protocol.VERIFIED);
+            int count = reader.readVarInt();
+            if (count == 0) {
+                return;
+            }
+            if (round == Protocol.MAX_RETRIES) {
+                throw new IOException(count + " files failed verification");
+            }
+
+            int[] failed = new int[count];
+            for (int i = 0; i < count; i++) {
+                failed[i] = reader.readVarInt();
+                if (failed[i] >= sent.size()) {
+                    throw new ProtocolException("No file " + failed[i] + " to resend");
+                }
+            }
+            for (int index : failed) {
+                File file = sent.get(index);
+                Timber.w("Resending %s after a checksum mismatch", file.getName());
+                send(file);
+            }
+            writer.begin(Protocol.END);
+            writer.end();
+            writer.flush();
+        }
+    }
+
+    /**
+     * Reads the acknowledgements that have already arrived, without waiting for more.
+     *
+     * @return the number of instances they acknowledge
+     */
+    public int pollAcks() throws IOException {
+        int count = 0;
+        while (reader.isReady()) {
+            reader.expect(Protocol.ACK);
+            count += reader.readVarInt();
+        }
+        return count;
+    }
+
+    /**
+     * Reads acknowledgements until {@code outstanding} instances are acknowledged. Called
+     * once the stream is finished, when everything sent is due.
+     */
+    public int awaitAcks(int outstanding) throws IOException {
+        int count = 0;
+        while (count < outstanding) {
+            reader.expect(Protocol.ACK);
+            count += reader.readVarInt();
+        }
+        return count;
+    }
+
+    /**
+     * Releases the deflater of this stream and gives its buffers back to the pool.
+     */
+    public void close() {
+        if (deflater != null) {
+            deflater.end();
+            deflater = null;
+        }
+        if (raw != null) {
+            pool.release(raw.array());
+            raw = null;
+        }
+        pool.release(packed);
+        packed = null;
+        if (copyBuffer != null) {
+            pool.release(copyBuffer.array());
+            copyBuffer = null;
+        }
+        if (window != null) {
+            pool.release(window.array());
+            window = null;
+        }
+    }
+
+    /**
+     * Sends a file as a delta against the signature of the revision the receiver holds. The
+     * window rolls over the file one byte at a time until it lines up with an old block; the
+     * bytes it passed are sent as raw chunks and the block as a copy frame. The checksum of
+     * the whole file follows in any case, since a delta is only as good as its basis.
+     */
+    public void sendDelta(File file, BlockSignature basis) throws IOException {
+        long start = System.nanoTime();
+        long length = file.length();
+        int blockSize = basis.getBlockSize();
+        writer.begin(Protocol.DELTA);
+        writer.writeString(file.getName());
+        writer.writeVarLong(length);
+        writer.writeVarInt(blockSize);
+        writer.end();
+
+        if (window == null) {
+            window = ByteBuffer.wrap(pool.acquire(WINDOW_SIZE));
+            md5 = DigestUtils.getDigest("MD5");
+        }
+        byte[] bytes = window.array();
+        checksum.reset();
+        copyCount = 0;
+        long copied = 0;
+        try (FileInputStream fis = new FileInputStream(file)) {
+            FileChannel fileChannel = fis.getChannel();
+            long position = 0;
+            // the block being matched starts at offset, literal bytes before it are pending
+            int offset = 0;
+            int end = 0;
+            int literal = 0;
+            int weak = 0;
+            boolean rolling = false;
+            while (true) {
+                if (end - offset < blockSize && position < length) {
+                    sendLiteral(bytes, literal, offset);
+                    System.arraycopy(bytes, offset, bytes, 0, end - offset);
+                    end -= offset;
+                    offset = 0;
+                    literal = 0;
+                    int n = read(fileChannel, window, end, position,
+                            (int) Math.min(bytes.length - end, length - position));
+                    checksum.update(bytes, end, n);
+                    end += n;
+                    position += n;
+                    continue;
+                }
+                if (end - offset < blockSize) {
+                    break;
+                }
+
+                if (!rolling) {
+                    weak = BlockSignature.weak(bytes, offset, blockSize);
+                    rolling = true;
+                }
+                int block = basis.find(weak, bytes, offset, md5);
+                if (block >= 0) {
+                    sendLiteral(bytes, literal, offset);
+                    queueCopy(block);
+                    copied += blockSize;
+                    offset += blockSize;
+                    literal = offset;
+                    rolling = false;
+                } else {
+                    if (offset + blockSize < end) {
+                        weak = BlockSignature.roll(weak, bytes[offset], bytes[offset + blockSize],
+                                blockSize);
+                    } else {
+                        rolling = false;
+                    }
+                    offset++;
+                    if (offset - literal == CHUNK_SIZE) {
+                        sendLiteral(bytes, literal, offset);
+                        literal = offset;
+                    }
+                }
+            }
+            sendLiteral(bytes, literal, end);
+            sendCopies();
+        } finally {
+            sendNanos += System.nanoTime() - start;
+        }
+
+        writer.begin(Protocol.CHECKSUM);
+        writer.writeVarLong(checksum.getValue());
+        writer.end();
+        Timber.d("Delta of %s: %d of %d bytes reused", file.getName(), copied, length);
+    }
+
+    private void sendRaw(FileChannel fileChannel, long position, long length) throws IOException {
+        if (zeroCopy && !verify) {
+            // headers are still sitting in the stream's buffer
+            out.flush();
+            while (position < length) {
+                long sent = fileChannel.transferTo(position, length - position, channel);
+                if (sent <= 0) {
+                    Timber.w("transferTo made no progress, falling back to streams");
+                    zeroCopy = false;
+                    break;
+                }
+                position += sent;
+            }
+        }
+
+        if (position < length) {
+            copy(fileChannel, position, length);
+        }
+    }
+
+    private void sendDeflated(FileChannel fileChannel, long position, long length)
+            throws IOException {
+        prepareDeflate();
+        byte[] chunk = raw.array();
+
+        while (position < length) {
+            int n = read(fileChannel, raw, 0, position,
+                    (int) Math.min(CHUNK_SIZE, length - position));
+            if (verify) {
+                checksum.update(chunk, 0, n);
+            }
+            int packedLength = compress ? deflate(chunk, n, packed) : -1;
+
+            if (packedLength >= 0) {
+                writer.writeFrame(Protocol.CHUNK_DEFLATED, packed, 0, packedLength);
+                wireBytes += packedLength;
+            } else {
+                writer.writeFrame(Protocol.CHUNK_RAW, chunk, 0, n);
+                wireBytes += n;
+            }
+            position += n;
+        }
+        checkCompressionPays();
+    }
+
+    /**
+     * Deflates one chunk on its own, so the receiver can inflate it without earlier chunks.
+     *
+     * @return the deflated length, or -1 if the chunk does not shrink
+     */
+    private int deflate(byte[] raw, int length, byte[] packed) {
+        long start = System.nanoTime();
+        deflater.reset();
+        deflater.setInput(raw, 0, length);
+        deflater.finish();
+        int packedLength = 0;
+        while (!deflater.finished() && packedLength < packed.length) {
+            packedLength += deflater.deflate(packed, packedLength, packed.length - packedLength);
+        }
+        deflateNanos += System.nanoTime() - start;
+        deflateInBytes += length;
+        deflateOutBytes += packedLength;
+        return deflater.finished() && packedLength < length ? packedLength : -1;
+    }
+
+    /**
+     * Turns compression off for the rest of the stream when deflating a byte takes longer
+     * than the time its savings win back on the wire.
+     */
+    private void checkCompressionPays() {
+        long linkNanos = sendNanos - deflateNanos;
+        if (!compress || wireBytes < MIN_MEASURED_BYTES || deflateInBytes == 0 || linkNanos <= 0) {
+            return;
+        }
+
+        double nanosPerWireByte = (double) linkNanos / wireBytes;
+        double savedNanos = (deflateInBytes - deflateOutBytes) * nanosPerWireByte;
+        if (deflateNanos > savedNanos) {
+            Timber.d("Link outpaces deflate (%d ns spent, %.0f ns saved), compression off",
+                    deflateNanos, savedNanos);
+            compress = false;
+        }
+    }
+
+    /**
+     * Deflate is worth trying on text formats and never on media that is compressed already.
+     * Anything else is decided by deflating a sample from the start of the file.
+     */
+    private boolean isCompressible(File file) throws IOException {
+        String extension = FileUtils.getFileExtension(file.getName());
+        if (COMPRESSIBLE.contains(extension)) {
+            return true;
+        }
+        if (COMPRESSED.contains(extension)) {
+            return false;
+        }
+
+        prepareDeflate();
+        try (FileInputStream fis = new FileInputStream(file)) {
+            int n = read(fis.getChannel(), raw, 0, 0, (int) Math.min(SAMPLE_SIZE, file.length()));
+            deflater.reset();
+            deflater.setInput(raw.array(), 0, n);
+            deflater.finish();
+            int packedLength = 0;
+            while (!deflater.finished() && packedLength < packed.length) {
+                packedLength += deflater.deflate(packed, packedLength, packed.length - packedLength);
+            }
+            return packedLength < n * 0.9;
+        }
+    }
+
+    private void prepareDeflate() {
+        if (deflater == null) {
+            deflater = new Deflater(Deflater.BEST_SPEED);
+        }
+        if (raw == null) {
+            raw = ByteBuffer.wrap(pool.acquire(CHUNK_SIZE));
+            packed = pool.acquire(MAX_DEFLATED_CHUNK);
+        }
+    }
+
+    private void sendLiteral(byte[] bytes, int from, int to) throws IOException {
+        if (to > from) {
+            sendCopies();
+            writer.writeFrame(Protocol.CHUNK_RAW, bytes, from, to - from);
+            wireBytes += to - from;
+        }
+    }
+
+    /**
+     * Adds an old block to the pending run, which is sent once the next block does not
+     * follow it.
+     */
+    private void queueCopy(int block) throws IOException {
+        if (copyCount > 0 && block == copyFrom + copyCount) {
+            copyCount++;
+            return;
+        }
+        sendCopies();
+        copyFrom = block;
+        copyCount = 1;
+    }
+
+    private void sendCopies() throws IOException {
+        if (copyCount > 0) {
+            writer.begin(Protocol.DELTA_COPY);
+            writer.writeVarInt(copyFrom);
+            writer.writeVarInt(copyCount);
+            writer.end();
+            copyCount = 0;
+        }
+    }
+
+    /**
+     * Reads {@code length} bytes at the given file position into the buffer at
+     * {@code offset}.
+     */
+    private static int read(FileChannel fileChannel, ByteBuffer buffer, int offset, long position,
+                            int length) throws IOException {
+        buffer.clear();
+        buffer.position(offset);
+        buffer.limit(offset + length);
+        while (buffer.hasRemaining()) {
+            if (fileChannel.read(buffer, position + buffer.position() - offset) == -1) {
+                throw new EOFException("File shorter than announced length");
+            }
+        }
+        return length;
+    }
+
+    private void copy(FileChannel fileChannel, long position, long length) throws IOException {
+        if (copyBuffer == null) {
+            copyBuffer = ByteBuffer.wrap(pool.acquire(bufferSize));
+        }
+        ByteBuffer buffer = copyBuffer;
+        while (position < length) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), length - position));
+            int read = fileChannel.read(buffer, position);
+            if (read == -1) {
+                throw new EOFException("File shorter than announced length");
+            }
+            if (verify) {
+                checksum.update(buffer.array(), 0, read);
+            }
+            out.write(buffer.array(), 0, read);
+            position += read;
+        }
+    }
+}
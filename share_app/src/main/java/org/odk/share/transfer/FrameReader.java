@@ -0,0 +1,208 @@
+package org.odk.share.transfer;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.ProtocolException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Decodes frames of the {@link Protocol} from a stream. Every frame is read into the same
+ * buffer, which only grows, and its fields are decoded in place. Strings sent by table index
+ * come back as the instance decoded the first time.
+ *
+ * <p>Nothing past the current frame is read, so the raw content of a file can be read from
+ * the underlying stream right after its file frame.
+ */
+public class FrameReader {
+
+    private final InputStream in;
+    private final List<String> strings = new ArrayList<>();
+    private byte[] payload = new byte[256];
+    private int length;
+    private int position;
+    private int type;
+
+    public FrameReader(InputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * Whether bytes of the next frame have arrived, so reading it starts without waiting.
+     */
+    public boolean isReady() throws IOException {
+        return in.available() > 0;
+    }
+
+    /**
+     * Reads the next frame.
+     *
+     * @return the type of the frame
+     */
+    public int next() throws IOException {
+        int b = in.read();
+        if (b == -1) {
+            throw new EOFException("Stream ended before the next frame");
+        }
+        type = b;
+
+        long count = readHeaderVarLong();
+        if (count > Protocol.MAX_FRAME_SIZE) {
+            throw new ProtocolException("Frame of " + count + " bytes is too large");
+        }
+        length = (int) count;
+        if (length > payload.length) {
+            payload = new byte[Math.max(length, payload.length * 2)];
+        }
+
+        int read = 0;
+        while (read < length) {
+            int n = in.read(payload, read, length - read);
+            if (n == -1) {
+                throw new EOFException("Stream ended inside a frame");
+            }
+            read += n;
+        }
+        position = 0;
+        return type;
+    }
+
+    /**
+     * Reads the next frame and fails unless it has the given type.
+     */
+    public void expect(int expected) throws IOException {
+        int actual = next();
+        if (actual != expected) {
+            throw new ProtocolException("Expected frame " + expected + " but got " + actual);
+        }
+    }
+
+    public int getType() {
+        return type;
+    }
+
+    /**
+     * Payload of the current frame, valid until the next frame is read.
+     */
+    public byte[] getPayload() {
+        return payload;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    public long readVarLong() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (position >= length) {
+                throw new ProtocolException("Frame ends inside a varint");
+            }
+            byte b = payload[position++];
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new ProtocolException("Varint is too long");
+    }
+
+    public int readVarInt() throws IOException {
+        long value = readVarLong();
+        if (value > Integer.MAX_VALUE) {
+            throw new ProtocolException("Varint " + value + " does not fit an int");
+        }
+        return (int) value;
+    }
+
+    public int readInt() throws IOException {
+        if (length - position < 4) {
+            throw new ProtocolException("Frame ends inside an int");
+        }
+        int value = 0;
+        for (int i = 0; i < 4; i++) {
+            value = value << 8 | (payload[position++] & 0xFF);
+        }
+        return value;
+    }
+
+    public long readLong() throws IOException {
+        return (long) readInt() << 32 | (readInt() & 0xFFFFFFFFL);
+    }
+
+    public boolean readBoolean() throws IOException {
+        if (position >= length) {
+            throw new ProtocolException("Frame ends before a boolean");
+        }
+        return payload[position++] != 0;
+    }
+
+    /**
+     * Skips over {@code count} raw bytes of the frame.
+     *
+     * @return the offset of the bytes in {@link #getPayload()}
+     */
+    public int readBytes(int count) throws IOException {
+        if (count < 0 || count > length - position) {
+            throw new ProtocolException("Frame ends inside a block of " + count + " bytes");
+        }
+        int offset = position;
+        position += count;
+        return offset;
+    }
+
+    /**
+     * Reads a string written by {@link FrameWriter#writeString}.
+     */
+    public String readString() throws IOException {
+        long tag = readVarLong();
+        if (tag == 0) {
+            return null;
+        }
+
+        if ((tag & 1) == 1) {
+            long index = tag >>> 1;
+            if (index >= strings.size()) {
+                throw new ProtocolException("Unknown string index " + index);
+            }
+            return strings.get((int) index);
+        }
+
+        long byteLength = (tag >>> 1) - 1;
+        if (byteLength > length - position) {
+            throw new ProtocolException("Frame ends inside a string");
+        }
+        String value = decode(payload, position, (int) byteLength);
+        position += byteLength;
+
+        if (strings.size() < Protocol.MAX_TABLE_SIZE && byteLength <= Protocol.MAX_TABLE_STRING) {
+            strings.add(value);
+        }
+        return value;
+    }
+
+    private long readHeaderVarLong() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.read();
+            if (b == -1) {
+                throw new EOFException("Stream ended inside a frame header");
+            }
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new ProtocolException("Frame length is too long");
+    }
+
+    private static String decode(byte[] bytes, int offset, int count) {
+        try {
+            return new String(bytes, offset, count, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
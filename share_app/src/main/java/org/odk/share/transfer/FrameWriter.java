@@ -0,0 +1,169 @@
+package org.odk.share.transfer;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Encodes frames of the {@link Protocol} onto a stream. A frame is built in a reused buffer
+ * between {@link #begin} and {@link #end}, then written with its header in one go.
+ */
+public class FrameWriter {
+
+    private final OutputStream out;
+    private final Map<String, Integer> strings = new HashMap<>();
+    private final byte[] header = new byte[11];
+    private byte[] payload = new byte[256];
+    private int length;
+    private int type = -1;
+
+    public FrameWriter(OutputStream out) {
+        this.out = out;
+    }
+
+    /**
+     * The underlying stream, for the raw content that follows a file frame.
+     */
+    public OutputStream getOutputStream() {
+        return out;
+    }
+
+    public void begin(int type) {
+        this.type = type;
+        length = 0;
+    }
+
+    public void end() throws IOException {
+        if (type == -1) {
+            throw new IllegalStateException("No frame started");
+        }
+        writeHeader(type, length);
+        out.write(payload, 0, length);
+        type = -1;
+    }
+
+    /**
+     * Writes a whole frame whose payload is the given bytes, without copying them.
+     */
+    public void writeFrame(int type, byte[] bytes, int offset, int count) throws IOException {
+        writeHeader(type, count);
+        out.write(bytes, offset, count);
+    }
+
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    public void writeVarLong(long value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("Negative varint " + value);
+        }
+        ensureCapacity(10);
+        while ((value & ~0x7FL) != 0) {
+            payload[length++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        payload[length++] = (byte) value;
+    }
+
+    public void writeVarInt(int value) {
+        writeVarLong(value);
+    }
+
+    /**
+     * Writes four bytes, big-endian, for values that are evenly spread like checksums.
+     */
+    public void writeInt(int value) {
+        ensureCapacity(4);
+        for (int shift = 24; shift >= 0; shift -= 8) {
+            payload[length++] = (byte) (value >>> shift);
+        }
+    }
+
+    public void writeLong(long value) {
+        writeInt((int) (value >>> 32));
+        writeInt((int) value);
+    }
+
+    public void writeBoolean(boolean value) {
+        ensureCapacity(1);
+        payload[length++] = (byte) (value ? 1 : 0);
+    }
+
+    /**
+     * Reads {@code count} bytes from the stream straight into the frame.
+     */
+    public void writeBytes(InputStream in, int count) throws IOException {
+        ensureCapacity(count);
+        int read = 0;
+        while (read < count) {
+            int n = in.read(payload, length + read, count - read);
+            if (n == -1) {
+                throw new EOFException("Stream shorter than announced length");
+            }
+            read += n;
+        }
+        length += count;
+    }
+
+    /**
+     * Writes a string that may be null. Short strings are added to the string table of the
+     * connection the first time they are written and sent as their index afterwards.
+     * The tag is 0 for null, {@code index << 1 | 1} for a table entry and
+     * {@code (byteLength + 1) << 1} for a literal.
+     */
+    public void writeString(String value) {
+        if (value == null) {
+            writeVarInt(0);
+            return;
+        }
+
+        Integer index = strings.get(value);
+        if (index != null) {
+            writeVarLong(((long) index << 1) | 1);
+            return;
+        }
+
+        byte[] bytes = encode(value);
+        writeVarLong((long) (bytes.length + 1) << 1);
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, payload, length, bytes.length);
+        length += bytes.length;
+
+        if (strings.size() < Protocol.MAX_TABLE_SIZE && bytes.length <= Protocol.MAX_TABLE_STRING) {
+            strings.put(value, strings.size());
+        }
+    }
+
+    private void writeHeader(int type, int count) throws IOException {
+        int n = 0;
+        header[n++] = (byte) type;
+        long value = count;
+        while ((value & ~0x7FL) != 0) {
+            header[n++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        header[n++] = (byte) value;
+        out.write(header, 0, n);
+    }
+
+    private void ensureCapacity(int extra) {
+        if (length + extra > payload.length) {
+            byte[] grown = new byte[Math.max(payload.length * 2, length + extra)];
+            System.arraycopy(payload, 0, grown, 0, length);
+            payload = grown;
+        }
+    }
+
+    private static byte[] encode(String value) {
+        try {
+            return value.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package org.odk.share.transfer;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.util.Locale;
+
+import timber.log.Timber;
+
+/**
+ * Round trip time and throughput of a link, measured right after the handshake. The sender
+ * sends a few small ping frames and one large one, and the receiver answers each with a
+ * pong frame. The smallest round trip of the small pings is the RTT, and the time the large
+ * ping took beyond that gives the throughput.
+ */
+public class LinkStats {
+
+    private static final int PINGS = 3;
+    private static final int PROBE_SIZE = 128 * 1024;
+
+    private static volatile LinkStats last;
+
+    private final long rttMicros;
+    private final long bytesPerSecond;
+
+    public LinkStats(long rttMicros, long bytesPerSecond) {
+        this.rttMicros = rttMicros;
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    /**
+     * The link measured most recently by this device, for diagnostics.
+     */
+    public static LinkStats getLast() {
+        return last;
+    }
+
+    /**
+     * Measures the link from the sender side. The receiver must be in {@link #answer}.
+     */
+    public static LinkStats measure(FrameWriter writer, FrameReader reader) throws IOException {
+        long rtt = Long.MAX_VALUE;
+        for (int i = 0; i < PINGS; i++) {
+            long start = System.nanoTime();
+            writer.writeFrame(Protocol.PING, new byte[0], 0, 0);
+            writer.flush();
+            reader.expect(Protocol.PONG);
+            rtt = Math.min(rtt, System.nanoTime() - start);
+        }
+
+        long start = System.nanoTime();
+        writer.writeFrame(Protocol.PING, new byte[PROBE_SIZE], 0, PROBE_SIZE);
+        writer.flush();
+        reader.expect(Protocol.PONG);
+        long transfer = Math.max(1000, System.nanoTime() - start - rtt);
+
+        LinkStats stats = new LinkStats(rtt / 1000, PROBE_SIZE * 1000000000L / transfer);
+        last = stats;
+        Timber.d("Measured link: %s", stats);
+        return stats;
+    }
+
+    /**
+     * Answers the pings of {@link #measure} on the receiver side.
+     */
+    public static void answer(FrameWriter writer, FrameReader reader) throws IOException {
+        for (int i = 0; i <= PINGS; i++) {
+            int type = reader.next();
+            if (type != Protocol.PING) {
+                throw new ProtocolException("Expected a ping frame but got " + type);
+            }
+            writer.writeFrame(Protocol.PONG, new byte[0], 0, 0);
+            writer.flush();
+        }
+    }
+
+    public long getRttMicros() {
+        return rttMicros;
+    }
+
+    public long getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "rtt %.1f ms, %.1f Mbit/s", rttMicros / 1000.0,
+                bytesPerSecond * 8 / 1000000.0);
+    }
+}
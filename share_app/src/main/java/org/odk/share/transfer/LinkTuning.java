@@ -0,0 +1,108 @@
+package org.odk.share.transfer;
+
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.Locale;
+
+import timber.log.Timber;
+
+/**
+ * Socket and buffer settings for a session, derived from {@link LinkStats}. Socket buffers
+ * hold twice the bandwidth-delay product, so a stream never stalls waiting for
+ * acknowledgements, and copy buffers hold about 10 ms of data. Without measurements the
+ * defaults suit a slow hotspot.
+ */
+public class LinkTuning {
+
+    private static final int MIN_SOCKET_BUFFER = 64 * 1024;
+    private static final int MAX_SOCKET_BUFFER = 2 * 1024 * 1024;
+    private static final int MIN_COPY_BUFFER = 8 * 1024;
+    private static final int MAX_COPY_BUFFER = 256 * 1024;
+    private static final int MIN_CONNECT_TIMEOUT = 2000;
+    private static final int MAX_CONNECT_TIMEOUT = 10000;
+
+    public static final LinkTuning DEFAULT = new LinkTuning(MIN_SOCKET_BUFFER, MIN_COPY_BUFFER,
+            MIN_CONNECT_TIMEOUT);
+
+    private static volatile LinkTuning last = DEFAULT;
+
+    private final int socketBufferSize;
+    private final int copyBufferSize;
+    private final int connectTimeout;
+
+    public LinkTuning(int socketBufferSize, int copyBufferSize, int connectTimeout) {
+        this.socketBufferSize = clamp(socketBufferSize, MIN_SOCKET_BUFFER, MAX_SOCKET_BUFFER);
+        this.copyBufferSize = clamp(copyBufferSize, MIN_COPY_BUFFER, MAX_COPY_BUFFER);
+        this.connectTimeout = clamp(connectTimeout, MIN_CONNECT_TIMEOUT, MAX_CONNECT_TIMEOUT);
+    }
+
+    public static LinkTuning forLink(LinkStats stats) {
+        long bdp = stats.getBytesPerSecond() * stats.getRttMicros() / 1000000;
+        LinkTuning tuning = new LinkTuning((int) Math.min(Integer.MAX_VALUE, 2 * bdp),
+                (int) Math.min(Integer.MAX_VALUE, stats.getBytesPerSecond() / 100),
+                (int) Math.min(Integer.MAX_VALUE, stats.getRttMicros() / 1000 * 20));
+        Timber.d("Tuning for %s: %s", stats, tuning);
+        return tuning;
+    }
+
+    /**
+     * The settings chosen most recently on this device, for diagnostics.
+     */
+    public static LinkTuning getLast() {
+        return last;
+    }
+
+    /**
+     * Records the settings a session settled on. Instances made for defaults or for the
+     * other side of a link are not recorded until a session uses them.
+     */
+    public static void setLast(LinkTuning tuning) {
+        last = tuning;
+    }
+
+    /**
+     * Applies the socket settings. Frames are flushed whole, so Nagle's algorithm would only
+     * delay the small control frames and is turned off. Buffers are only ever grown beyond
+     * what the platform picked. Receive buffers only widen the TCP window when set before
+     * connecting.
+     */
+    public void apply(Socket socket) {
+        try {
+            socket.setTcpNoDelay(true);
+            if (socket.getSendBufferSize() < socketBufferSize) {
+                socket.setSendBufferSize(socketBufferSize);
+            }
+            if (socket.getReceiveBufferSize() < socketBufferSize) {
+                socket.setReceiveBufferSize(socketBufferSize);
+            }
+        } catch (SocketException e) {
+            Timber.e(e);
+        }
+    }
+
+    public int getSocketBufferSize() {
+        return socketBufferSize;
+    }
+
+    public int getCopyBufferSize() {
+        return copyBufferSize;
+    }
+
+    public int getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "socket buffers %d KB, copy buffer %d KB, "
+                + "connect timeout %d ms", socketBufferSize / 1024, copyBufferSize / 1024,
+                connectTimeout);
+    }
+
+    /**
+     * Clamps to the range and rounds down to a power of two.
+     */
+    private static int clamp(int value, int min, int max) {
+        return Integer.highestOneBit(Math.max(min, Math.min(max, value)));
+    }
+}
@@ -0,0 +1,131 @@
+package org.odk.share.transfer;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+
+import timber.log.Timber;
+
+/**
+ * Wire protocol shared by the sender and the receiver. Every message is a frame: a one byte
+ * type, the payload length as a varint and the payload. Payloads are made of varints,
+ * booleans and strings. The content of a file is not framed: it follows its {@link #FILE}
+ * frame as raw bytes, so it can still be spliced between the socket and the disk, unless the
+ * frame says it is sent as {@link #CHUNK_RAW} and {@link #CHUNK_DEFLATED} frames.
+ *
+ * <p>A connection starts with both peers sending a {@link #HELLO} frame with their protocol
+ * version and a bitmask of the optional features they support. Both peers then speak the
+ * lower of the two versions, and a peer older than {@link #MIN_VERSION} is turned away. Only
+ * the features both peers announce are used, so a feature can be added without breaking
+ * older peers, while a change to the frames themselves takes a new version.
+ * Additional streams of a session skip the hello and open with a {@link #JOIN} frame that
+ * carries the session token the sender gave out in the {@link #PLAN} frame.
+ *
+ * <p>With {@link #CAP_SYNC} the receiver answers the end of a session with a {@link #SYNC}
+ * frame naming how many instances it has to offer in return. If there are any, a second
+ * session follows on the same connection with the roles swapped, so two devices exchange
+ * their data without reconnecting.
+ *
+ * <p>With {@link #CAP_ACK} the receiver answers the instances of a stream with {@link #ACK}
+ * frames counting how many more it has saved in Collect and its own database, in the order
+ * they were sent. Only then does the sender record them as sent. With verification on, the
+ * instances of a stream are only saved once all of its files passed their checksums.
+ */
+public final class Protocol {
+
+    public static final int VERSION = 1;
+    // the oldest version this side still speaks, a newer peer must speak ours
+    public static final int MIN_VERSION = 1;
+
+    // optional features, announced in the hello frame
+    public static final long CAP_RESUME = 1;
+    public static final long CAP_DEDUP = 1 << 1;
+    public static final long CAP_MEDIA_REUSE = 1 << 2;
+    public static final long CAP_COMPRESSION = 1 << 3;
+    public static final long CAP_BATCH = 1 << 4;
+    public static final long CAP_CHECKSUM = 1 << 5;
+    public static final long CAP_TUNING = 1 << 6;
+    public static final long CAP_SYNC = 1 << 7;
+    public static final long CAP_DELTA = 1 << 8;
+    public static final long CAP_ACK = 1 << 9;
+    public static final long CAPABILITIES = CAP_RESUME | CAP_DEDUP | CAP_MEDIA_REUSE
+            | CAP_COMPRESSION | CAP_BATCH | CAP_CHECKSUM | CAP_TUNING | CAP_SYNC | CAP_DELTA
+            | CAP_ACK;
+
+    // frame types
+    public static final int HELLO = 1;
+    public static final int OFFER = 2;
+    public static final int ANSWER = 3;
+    public static final int PLAN = 4;
+    public static final int UNIT = 5;
+    public static final int FORM = 6;
+    public static final int INSTANCE = 7;
+    public static final int FILE = 8;
+    public static final int MEDIA_REUSE = 9;
+    public static final int CHUNK_RAW = 10;
+    public static final int CHUNK_DEFLATED = 11;
+    public static final int END = 12;
+    public static final int BATCH = 13;
+    public static final int JOIN = 14;
+    public static final int CHECKSUM = 15;
+    public static final int VERIFIED = 16;
+    public static final int PING = 17;
+    public static final int PONG = 18;
+    public static final int SYNC = 19;
+    public static final int DELTA = 20;
+    public static final int DELTA_COPY = 21;
+    public static final int ACK = 22;
+
+    // rounds of resending files that failed verification before a stream gives up
+    static final int MAX_RETRIES = 3;
+
+    // "ODKS", tells a share peer apart from anything else listening on the port
+    static final long MAGIC = 0x4F444B53L;
+    static final int MAX_FRAME_SIZE = 64 * 1024 * 1024;
+    // repeated strings up to this length are sent once per connection and then by index
+    static final int MAX_TABLE_SIZE = 4096;
+    static final int MAX_TABLE_STRING = 256;
+
+    private Protocol() {
+
+    }
+
+    /**
+     * Exchanges hello frames with the peer.
+     *
+     * @return the features supported by both peers
+     */
+    public static long handshake(FrameWriter writer, FrameReader reader) throws IOException {
+        sendHello(writer);
+        reader.expect(HELLO);
+        return readHello(reader);
+    }
+
+    public static void sendHello(FrameWriter writer) throws IOException {
+        writer.begin(HELLO);
+        writer.writeVarLong(MAGIC);
+        writer.writeVarInt(VERSION);
+        writer.writeVarLong(CAPABILITIES);
+        writer.end();
+        writer.flush();
+    }
+
+    /**
+     * Decodes the hello frame the reader is positioned on.
+     *
+     * @return the features supported by both peers
+     */
+    public static long readHello(FrameReader reader) throws IOException {
+        if (reader.readVarLong() != MAGIC) {
+            throw new ProtocolException("Peer is not a share peer");
+        }
+        int version = reader.readVarInt();
+        if (Math.min(version, VERSION) < MIN_VERSION) {
+            throw new ProtocolException("Peer speaks version " + version + ", at least "
+                    + MIN_VERSION + " is needed");
+        }
+        long capabilities = reader.readVarLong() & CAPABILITIES;
+        Timber.d("Peer speaks version %d, using %d with shared capabilities %d", version,
+                Math.min(version, VERSION), capabilities);
+        return capabilities;
+    }
+}
@@ -0,0 +1,208 @@
+package org.odk.share.transfer;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import timber.log.Timber;
+
+import static org.odk.share.application.Share.METADATA_PATH;
+
+/**
+ * Durable record of how far a receive session got, so an interrupted session can be
+ * resumed instead of restarted. The record is an append only journal that is synced after
+ * every entry: an instance is journaled when its directory is created and again once it has
+ * been saved. Byte offsets of partial files are not journaled, they are the lengths of the
+ * files found in the directory of an unfinished instance. The content digest the sender
+ * advertised is journaled with the directory, so the sender can tell whether the instance
+ * changed since and the bytes on disk are of an older revision.
+ */
+public class SessionCheckpoint {
+
+    // checkpoints of sessions that were never resumed are dropped after a week
+    private static final long MAX_AGE = 7L * 24 * 60 * 60 * 1000;
+    private static final String SESSIONS_PATH = METADATA_PATH + File.separator + "sessions";
+    private static final String STARTED = "S";
+    private static final String DONE = "D";
+
+    private final File journal;
+    private final Set<String> completed = new HashSet<>();
+    private final Map<String, String> partial = new HashMap<>();
+    // content digests of the unfinished instances, as advertised when they were started
+    private final Map<String, String> digests = new HashMap<>();
+
+    private SessionCheckpoint(File journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * Loads the checkpoint of the given session, or an empty one if the session is new.
+     */
+    public static SessionCheckpoint load(String sessionId) throws IOException {
+        File dir = new File(SESSIONS_PATH);
+        if (!dir.exists()) {
+            Timber.d("Directory created " + dir.getPath() + " " + dir.mkdirs());
+        }
+
+        SessionCheckpoint checkpoint = new SessionCheckpoint(new File(dir, sessionId));
+        if (checkpoint.journal.exists()) {
+            checkpoint.read();
+        }
+        return checkpoint;
+    }
+
+    /**
+     * Deletes checkpoints that have not been touched for {@link #MAX_AGE}, together with the
+     * directories of the instances they left unfinished.
+     */
+    public static void removeStale() {
+        File[] journals = new File(SESSIONS_PATH).listFiles();
+        if (journals == null) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        for (File file : journals) {
+            if (now - file.lastModified() < MAX_AGE) {
+                continue;
+            }
+
+            SessionCheckpoint checkpoint = new SessionCheckpoint(file);
+            try {
+                checkpoint.read();
+                for (String path : checkpoint.partial.values()) {
+                    deleteDirectory(new File(path));
+                }
+            } catch (IOException e) {
+                Timber.e(e);
+            }
+            Timber.d("Stale checkpoint %s deleted %s", file.getName(), file.delete());
+        }
+    }
+
+    /**
+     * Sender ids of the instances that were saved by an earlier attempt.
+     */
+    public synchronized Set<String> getCompleted() {
+        return new HashSet<>(completed);
+    }
+
+    /**
+     * Directories of the instances that an earlier attempt started but did not finish, by
+     * sender id. Directories that no longer exist are left out.
+     */
+    public synchronized Map<String, String> getPartial() {
+        Map<String, String> existing = new HashMap<>();
+        for (Map.Entry<String, String> entry : partial.entrySet()) {
+            if (new File(entry.getValue()).isDirectory()) {
+                existing.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return existing;
+    }
+
+    public synchronized String getDirectory(String id) {
+        String path = partial.get(id);
+        return path != null && new File(path).isDirectory() ? path : null;
+    }
+
+    /**
+     * Content digest the sender advertised for an unfinished instance, null if it had none.
+     */
+    public synchronized String getDigest(String id) {
+        return digests.get(id);
+    }
+
+    public synchronized void start(String id, String path, String digest) throws IOException {
+        append(STARTED + "\t" + id + "\t" + path + (digest == null ? "" : "\t" + digest));
+        partial.put(id, path);
+        if (digest == null) {
+            digests.remove(id);
+        } else {
+            digests.put(id, digest);
+        }
+    }
+
+    public synchronized void complete(String id) throws IOException {
+        append(DONE + "\t" + id);
+        partial.remove(id);
+        completed.add(id);
+    }
+
+    /**
+     * Journals several saved instances with a single sync.
+     */
+    public synchronized void complete(Collection<String> ids) throws IOException {
+        if (ids.isEmpty()) {
+            return;
+        }
+
+        StringBuilder entries = new StringBuilder();
+        for (String id : ids) {
+            if (entries.length() > 0) {
+                entries.append("\n");
+            }
+            entries.append(DONE).append("\t").append(id);
+        }
+        append(entries.toString());
+        for (String id : ids) {
+            partial.remove(id);
+            completed.add(id);
+        }
+    }
+
+    /**
+     * Drops the checkpoint once the session has been received completely.
+     */
+    public synchronized void delete() {
+        Timber.d("Checkpoint %s deleted %s", journal.getName(), journal.delete());
+    }
+
+    private void append(String entry) throws IOException {
+        try (FileOutputStream fos = new FileOutputStream(journal, true)) {
+            fos.write((entry + "\n").getBytes("UTF-8"));
+            fos.getFD().sync();
+        }
+    }
+
+    private void read() throws IOException {
+        byte[] bytes = new byte[(int) journal.length()];
+        try (DataInputStream in = new DataInputStream(new FileInputStream(journal))) {
+            in.readFully(bytes);
+        }
+
+        String[] lines = new String(bytes, "UTF-8").split("\n", -1);
+        // the last element is either empty or a torn entry that was never synced whole
+        for (int i = 0; i < lines.length - 1; i++) {
+            String[] fields = lines[i].split("\t");
+            if ((fields.length == 3 || fields.length == 4) && fields[0].equals(STARTED)) {
+                partial.put(fields[1], fields[2]);
+                if (fields.length == 4) {
+                    digests.put(fields[1], fields[3]);
+                } else {
+                    digests.remove(fields[1]);
+                }
+            } else if (fields.length == 2 && fields[0].equals(DONE)) {
+                partial.remove(fields[1]);
+                completed.add(fields[1]);
+            }
+        }
+    }
+
+    private static void deleteDirectory(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        Timber.d("Unfinished instance %s deleted %s", dir.getPath(), dir.delete());
+    }
+}
@@ -0,0 +1,221 @@
+package org.odk.share.transfer;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import timber.log.Timber;
+
+/**
+ * Accepts transfer connections on one thread with a {@link Selector}. A new connection costs
+ * no thread while it is idle: it is only handed to the {@link Handler} once its first frame
+ * has arrived whole, and it is dropped if that takes longer than {@link #FIRST_FRAME_TIMEOUT}.
+ * Closing the server wakes the selector, so the accept loop stops at once.
+ *
+ * <p>Handed over channels are in blocking mode again, so the session code can keep using
+ * streams and {@link java.nio.channels.FileChannel#transferTo} on them.
+ */
+public class TransferServer implements Closeable {
+
+    private static final int FIRST_FRAME_TIMEOUT = 10000;
+    // a hello or join frame is a few dozen bytes
+    private static final int MAX_FIRST_FRAME = 1024;
+
+    private final Selector selector;
+    private final ServerSocketChannel serverChannel;
+    private final Handler handler;
+    private final List<Pending> arrived = new ArrayList<>();
+    private volatile boolean closed;
+
+    public interface Handler {
+        /**
+         * Called on the accept thread with a connection whose first frame has arrived.
+         *
+         * @param in the bytes read from the connection so far, followed by the rest of it
+         */
+        void onConnection(SocketChannel channel, InputStream in) throws IOException;
+    }
+
+    public TransferServer(int port, Handler handler) throws IOException {
+        this.handler = handler;
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.socket().bind(new InetSocketAddress(port));
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    /**
+     * Accepts connections until the server is closed.
+     */
+    public void run() throws IOException {
+        try {
+            while (!closed) {
+                selector.select(nextDeadline());
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else if (key.isReadable()) {
+                        read(key);
+                    }
+                }
+                dropExpired();
+                handOver();
+            }
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                key.channel().close();
+            }
+            selector.close();
+            Timber.d("Transfer server closed");
+        }
+    }
+
+    public boolean isOpen() {
+        return !closed;
+    }
+
+    /**
+     * Stops accepting. Safe to call from any thread, connections already handed over are
+     * left open.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        selector.wakeup();
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.register(selector, SelectionKey.OP_READ, new Pending(channel));
+    }
+
+    private void read(SelectionKey key) throws IOException {
+        Pending pending = (Pending) key.attachment();
+        try {
+            if (pending.channel.read(pending.buffer) == -1) {
+                throw new ProtocolException("Connection closed before its first frame");
+            }
+            if (hasFrame(pending.buffer)) {
+                key.cancel();
+                arrived.add(pending);
+            }
+        } catch (IOException e) {
+            Timber.e(e);
+            key.cancel();
+            pending.channel.close();
+        }
+    }
+
+    /**
+     * Passes the connections whose first frame arrived to the handler, in blocking mode.
+     */
+    private void handOver() throws IOException {
+        if (arrived.isEmpty()) {
+            return;
+        }
+
+        // cancelled keys are only deregistered by the next select, and a channel cannot go
+        // back to blocking mode while it is registered
+        selector.selectNow();
+        for (Pending pending : arrived) {
+            SocketChannel channel = pending.channel;
+            try {
+                if (closed) {
+                    throw new IOException("Transfer server closed");
+                }
+                channel.configureBlocking(true);
+                pending.buffer.flip();
+                byte[] received = new byte[pending.buffer.remaining()];
+                pending.buffer.get(received);
+                handler.onConnection(channel, new SequenceInputStream(
+                        new ByteArrayInputStream(received), channel.socket().getInputStream()));
+            } catch (IOException e) {
+                Timber.e(e);
+                channel.close();
+            }
+        }
+        arrived.clear();
+    }
+
+    /**
+     * Time until the oldest waiting connection expires, 0 to wait without limit.
+     */
+    private long nextDeadline() {
+        long next = Long.MAX_VALUE;
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof Pending) {
+                next = Math.min(next, ((Pending) key.attachment()).deadline);
+            }
+        }
+        return next == Long.MAX_VALUE ? 0 : Math.max(1, next - System.currentTimeMillis());
+    }
+
+    private void dropExpired() throws IOException {
+        long now = System.currentTimeMillis();
+        for (SelectionKey key : selector.keys()) {
+            if (key.isValid() && key.attachment() instanceof Pending
+                    && ((Pending) key.attachment()).deadline <= now) {
+                Timber.d("Connection sent no frame in time, dropped");
+                key.cancel();
+                key.channel().close();
+            }
+        }
+    }
+
+    /**
+     * Whether the buffer holds a whole frame header and payload.
+     */
+    private static boolean hasFrame(ByteBuffer buffer) throws ProtocolException {
+        int end = buffer.position();
+        if (end < 2) {
+            return false;
+        }
+
+        int length = 0;
+        int position = 1;
+        for (int shift = 0; position < end; shift += 7) {
+            byte b = buffer.get(position++);
+            length |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0 && position + length <= buffer.capacity()) {
+                return end >= position + length;
+            }
+            if ((b & 0x80) == 0 || shift > 7) {
+                throw new ProtocolException("First frame is longer than " + MAX_FIRST_FRAME);
+            }
+        }
+        return false;
+    }
+
+    private static class Pending {
+        final SocketChannel channel;
+        final ByteBuffer buffer = ByteBuffer.allocate(MAX_FIRST_FRAME);
+        final long deadline = System.currentTimeMillis() + FIRST_FRAME_TIMEOUT;
+
+        Pending(SocketChannel channel) {
+            this.channel = channel;
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package org.odk.share.utilities;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+
+public final class DigestUtils {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private DigestUtils() {
+
+    }
+
+    /**
+     * SHA-256 of the given files in order. The name and length of every file are hashed along
+     * with its content, so renamed or reordered attachments give a different digest.
+     */
+    public static String sha256(List<File> files) throws IOException {
+        MessageDigest digest = getDigest("SHA-256");
+        byte[] buffer = new byte[BUFFER_SIZE];
+        for (File file : files) {
+            digest.update(file.getName().getBytes("UTF-8"));
+            digest.update((byte) 0);
+            digest.update(String.valueOf(file.length()).getBytes("UTF-8"));
+            digest.update((byte) 0);
+            try (FileInputStream fis = new FileInputStream(file)) {
+                int n;
+                while ((n = fis.read(buffer)) != -1) {
+                    digest.update(buffer, 0, n);
+                }
+            }
+        }
+        return toHex(digest.digest());
+    }
+
+    /**
+     * SHA-256 of the content of a single file.
+     */
+    public static String sha256(File file) throws IOException {
+        MessageDigest digest = getDigest("SHA-256");
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try (FileInputStream fis = new FileInputStream(file)) {
+            int n;
+            while ((n = fis.read(buffer)) != -1) {
+                digest.update(buffer, 0, n);
+            }
+        }
+        return toHex(digest.digest());
+    }
+
+    public static String sha1(String value) {
+        try {
+            return toHex(getDigest("SHA-1").digest(value.getBytes("UTF-8")));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+            hex.append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    public static MessageDigest getDigest(String algorithm) {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            // MD5, SHA-1 and SHA-256 are required on every platform
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package org.odk.share.transfer;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.odk.share.utilities.DigestUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.security.MessageDigest;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class BlockSignatureTest {
+
+    private static final int BLOCK_SIZE = 2048;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void rollingMatchesTheChecksumAtEveryOffset() {
+        byte[] bytes = random(4 * BLOCK_SIZE, 1);
+        int weak = BlockSignature.weak(bytes, 0, BLOCK_SIZE);
+        for (int offset = 1; offset + BLOCK_SIZE <= bytes.length; offset++) {
+            weak = BlockSignature.roll(weak, bytes[offset - 1], bytes[offset + BLOCK_SIZE - 1],
+                    BLOCK_SIZE);
+            assertEquals(BlockSignature.weak(bytes, offset, BLOCK_SIZE), weak);
+        }
+    }
+
+    @Test
+    public void findsBlocksAtAnyOffset() throws IOException {
+        byte[] old = random(3 * BLOCK_SIZE + 100, 2);
+        old[2 * BLOCK_SIZE + 100] = 100;
+        old[2 * BLOCK_SIZE + 101] = 100;
+        old[2 * BLOCK_SIZE + 102] = 100;
+        BlockSignature signature = BlockSignature.compute(write("old", old));
+        assertEquals(BLOCK_SIZE, signature.getBlockSize());
+        assertEquals(3, signature.getBlockCount());
+
+        // the third block of the old file, 17 bytes into the new one
+        byte[] buffer = random(BLOCK_SIZE + 17, 3);
+        System.arraycopy(old, 2 * BLOCK_SIZE, buffer, 17, BLOCK_SIZE);
+        MessageDigest md5 = DigestUtils.getDigest("MD5");
+        int weak = BlockSignature.weak(buffer, 17, BLOCK_SIZE);
+        assertEquals(2, signature.find(weak, buffer, 17, md5));
+        assertEquals(-1, signature.find(BlockSignature.weak(buffer, 0, BLOCK_SIZE), buffer, 0,
+                md5));
+
+        // +1, -2, +1 keeps both sums of the weak checksum, the strong one tells them apart
+        buffer[17 + 100] = 101;
+        buffer[17 + 101] = 98;
+        buffer[17 + 102] = 101;
+        assertEquals(weak, BlockSignature.weak(buffer, 17, BLOCK_SIZE));
+        assertEquals(-1, signature.find(weak, buffer, 17, md5));
+    }
+
+    @Test
+    public void signatureRoundTrips() throws IOException {
+        byte[] old = random(5 * BLOCK_SIZE, 4);
+        BlockSignature signature = BlockSignature.compute(write("old", old));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        FrameWriter writer = new FrameWriter(out);
+        writer.begin(Protocol.ANSWER);
+        signature.write(writer);
+        writer.end();
+
+        FrameReader reader = new FrameReader(new ByteArrayInputStream(out.toByteArray()));
+        reader.expect(Protocol.ANSWER);
+        BlockSignature read = BlockSignature.read(reader);
+        assertEquals(signature.getBlockSize(), read.getBlockSize());
+        assertEquals(signature.getBlockCount(), read.getBlockCount());
+        MessageDigest md5 = DigestUtils.getDigest("MD5");
+        for (int i = 0; i < read.getBlockCount(); i++) {
+            int offset = i * BLOCK_SIZE;
+            assertEquals(i, read.find(BlockSignature.weak(old, offset, BLOCK_SIZE), old, offset,
+                    md5));
+        }
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void blockSizeOutOfRangeIsRejected() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        FrameWriter writer = new FrameWriter(out);
+        writer.begin(Protocol.ANSWER);
+        writer.writeVarInt(16);
+        writer.writeVarInt(0);
+        writer.end();
+
+        FrameReader reader = new FrameReader(new ByteArrayInputStream(out.toByteArray()));
+        reader.next();
+        BlockSignature.read(reader);
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void blockCountPastTheFrameIsRejected() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        FrameWriter writer = new FrameWriter(out);
+        writer.begin(Protocol.ANSWER);
+        writer.writeVarInt(BLOCK_SIZE);
+        writer.writeVarInt(1000);
+        writer.end();
+
+        FrameReader reader = new FrameReader(new ByteArrayInputStream(out.toByteArray()));
+        reader.next();
+        BlockSignature.read(reader);
+    }
+
+    @Test
+    public void blockSizeGrowsWithTheSquareRootOfTheFile() {
+        assertEquals(BLOCK_SIZE, BlockSignature.getBlockSize(0));
+        assertEquals(BLOCK_SIZE, BlockSignature.getBlockSize(1024 * 1024));
+        assertEquals(4096, BlockSignature.getBlockSize(16 * 1024 * 1024));
+        assertEquals(FileSender.CHUNK_SIZE, BlockSignature.getBlockSize(Long.MAX_VALUE));
+    }
+
+    private File write(String name, byte[] bytes) throws IOException {
+        File file = folder.newFile(name);
+        try (FileOutputStream fos = new FileOutputStream(file)) {
+            fos.write(bytes);
+        }
+        return file;
+    }
+
+    private static byte[] random(int length, long seed) {
+        byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,157 @@
+package org.odk.share.transfer;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Deltas sent by {@link FileSender#sendDelta} and applied by {@link FileReceiver#receiveDelta}
+ * against the revision the signature was computed from.
+ */
+public class DeltaTransferTest {
+
+    private static final String NAME = "instance.xml";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void editedFileIsRebuilt() throws IOException {
+        byte[] old = random(600 * 1024, 1);
+        ByteArrayOutputStream edited = new ByteArrayOutputStream();
+        // an insertion, a changed byte, a removed range across the first window and an append
+        edited.write(old, 0, 50000);
+        edited.write(random(1000, 2), 0, 1000);
+        edited.write(old, 50000, 70000);
+        edited.write(old[120000] ^ 0xFF);
+        edited.write(old, 120001, 150000);
+        edited.write(old, 300000, old.length - 300000);
+        edited.write(random(3000, 3), 0, 3000);
+
+        byte[] wire = assertRebuilt(old, edited.toByteArray());
+        assertTrue(wire.length < edited.size() / 10);
+    }
+
+    @Test
+    public void unchangedFileIsSentAsCopies() throws IOException {
+        byte[] old = random(300 * 1024, 4);
+        byte[] wire = assertRebuilt(old, old);
+        assertTrue(wire.length < 100);
+    }
+
+    @Test
+    public void unrelatedFileIsSentAsLiterals() throws IOException {
+        byte[] old = random(100 * 1024, 5);
+        byte[] updated = random(150 * 1024, 6);
+        byte[] wire = assertRebuilt(old, updated);
+        assertTrue(wire.length > updated.length);
+    }
+
+    @Test
+    public void shrunkFileIsRebuilt() throws IOException {
+        byte[] old = random(200 * 1024, 7);
+        byte[] updated = new byte[5000];
+        System.arraycopy(old, 100000, updated, 0, updated.length);
+        assertRebuilt(old, updated);
+    }
+
+    @Test
+    public void deltaAgainstAnotherBasisIsRejected() throws IOException {
+        byte[] old = random(100 * 1024, 8);
+        File receiverDir = folder.newFolder("receiver");
+        BlockSignature signature = BlockSignature.compute(write(receiverDir, old));
+        byte[] wire = sendDelta(old, signature);
+
+        // the basis changed after its signature was sent
+        byte[] changed = old.clone();
+        changed[4096] ^= 1;
+        write(receiverDir, changed);
+        try {
+            receive(wire, receiverDir);
+            fail("Delta against a changed basis was applied");
+        } catch (IOException e) {
+            assertArrayEquals(changed, read(new File(receiverDir, NAME)));
+            assertFalse(new File(receiverDir, NAME + ".delta").exists());
+        }
+    }
+
+    /**
+     * Sends {@code updated} as a delta against {@code old} and checks that the receiver
+     * rebuilds it byte for byte.
+     *
+     * @return what was sent
+     */
+    private byte[] assertRebuilt(byte[] old, byte[] updated) throws IOException {
+        File receiverDir = folder.newFolder("receiver");
+        File basis = write(receiverDir, old);
+        byte[] wire = sendDelta(updated, BlockSignature.compute(basis));
+
+        assertEquals(NAME, receive(wire, receiverDir));
+        assertArrayEquals(updated, read(basis));
+        assertFalse(new File(receiverDir, NAME + ".delta").exists());
+        return wire;
+    }
+
+    private byte[] sendDelta(byte[] content, BlockSignature signature) throws IOException {
+        File file = write(folder.newFolder(), content);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        FrameReader replies = new FrameReader(new ByteArrayInputStream(new byte[0]));
+        FileSender sender = new FileSender(new FrameWriter(out), replies, new Socket(),
+                new BufferPool(), false, false);
+        sender.sendDelta(file, signature);
+        sender.getWriter().flush();
+        sender.close();
+        return out.toByteArray();
+    }
+
+    private static String receive(byte[] wire, File dir) throws IOException {
+        FileReceiver receiver = new FileReceiver(new Socket(), new ByteArrayInputStream(wire),
+                new BufferPool());
+        try {
+            receiver.getReader().expect(Protocol.DELTA);
+            return receiver.receiveDelta(dir.getPath());
+        } finally {
+            receiver.close();
+        }
+    }
+
+    private static File write(File dir, byte[] bytes) throws IOException {
+        File file = new File(dir, NAME);
+        try (FileOutputStream fos = new FileOutputStream(file)) {
+            fos.write(bytes);
+        }
+        return file;
+    }
+
+    private static byte[] read(File file) throws IOException {
+        byte[] bytes = new byte[(int) file.length()];
+        try (FileInputStream fis = new FileInputStream(file)) {
+            int read = 0;
+            while (read < bytes.length) {
+                read += fis.read(bytes, read, bytes.length - read);
+            }
+        }
+        return bytes;
+    }
+
+    private static byte[] random(int length, long seed) {
+        byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+}
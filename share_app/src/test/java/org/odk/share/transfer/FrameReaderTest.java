@@ -0,0 +1,284 @@
+package org.odk.share.transfer;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ProtocolException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Round trips of frames through {@link FrameWriter} and {@link FrameReader}, and the limits
+ * the reader enforces on what it is sent.
+ */
+public class FrameReaderTest {
+
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    private final FrameWriter writer = new FrameWriter(out);
+
+    @Test
+    public void numbersRoundTrip() throws IOException {
+        long[] varLongs = {0, 1, 127, 128, 300, 16383, 16384, Integer.MAX_VALUE, Long.MAX_VALUE};
+        writer.begin(Protocol.PLAN);
+        for (long value : varLongs) {
+            writer.writeVarLong(value);
+        }
+        writer.writeVarInt(Integer.MAX_VALUE);
+        writer.writeInt(-1);
+        writer.writeInt(0x12345678);
+        writer.writeLong(Long.MIN_VALUE);
+        writer.writeLong(0x0123456789ABCDEFL);
+        writer.writeBoolean(true);
+        writer.writeBoolean(false);
+        writer.end();
+
+        FrameReader reader = reader();
+        assertEquals(Protocol.PLAN, reader.next());
+        for (long value : varLongs) {
+            assertEquals(value, reader.readVarLong());
+        }
+        assertEquals(Integer.MAX_VALUE, reader.readVarInt());
+        assertEquals(-1, reader.readInt());
+        assertEquals(0x12345678, reader.readInt());
+        assertEquals(Long.MIN_VALUE, reader.readLong());
+        assertEquals(0x0123456789ABCDEFL, reader.readLong());
+        assertTrue(reader.readBoolean());
+        assertFalse(reader.readBoolean());
+    }
+
+    @Test
+    public void framesFollowEachOther() throws IOException {
+        writer.begin(Protocol.UNIT);
+        writer.writeVarInt(3);
+        writer.end();
+        byte[] bytes = {1, 2, 3, 4, 5};
+        writer.writeFrame(Protocol.CHUNK_RAW, bytes, 1, 3);
+        writer.begin(Protocol.END);
+        writer.end();
+
+        FrameReader reader = reader();
+        reader.expect(Protocol.UNIT);
+        assertEquals(3, reader.readVarInt());
+        assertEquals(Protocol.CHUNK_RAW, reader.next());
+        assertEquals(3, reader.getLength());
+        assertEquals(2, reader.getPayload()[0]);
+        assertEquals(4, reader.getPayload()[2]);
+        reader.expect(Protocol.END);
+        assertEquals(0, reader.getLength());
+    }
+
+    @Test
+    public void bytesRoundTrip() throws IOException {
+        byte[] content = new byte[1000];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) i;
+        }
+        writer.begin(Protocol.BATCH);
+        writer.writeString("a.xml");
+        writer.writeVarInt(content.length);
+        writer.writeBytes(new ByteArrayInputStream(content), content.length);
+        writer.writeBoolean(true);
+        writer.end();
+
+        FrameReader reader = reader();
+        reader.expect(Protocol.BATCH);
+        assertEquals("a.xml", reader.readString());
+        int length = reader.readVarInt();
+        int offset = reader.readBytes(length);
+        for (int i = 0; i < length; i++) {
+            assertEquals(content[i], reader.getPayload()[offset + i]);
+        }
+        assertTrue(reader.readBoolean());
+    }
+
+    @Test
+    public void stringsRoundTrip() throws IOException {
+        writer.begin(Protocol.OFFER);
+        writer.writeString(null);
+        writer.writeString("");
+        writer.writeString("formId");
+        writer.writeString("caf\u00e9 \u4e2d\u6587 \ud83d\ude00");
+        writer.end();
+
+        FrameReader reader = reader();
+        reader.expect(Protocol.OFFER);
+        assertNull(reader.readString());
+        assertEquals("", reader.readString());
+        assertEquals("formId", reader.readString());
+        assertEquals("caf\u00e9 \u4e2d\u6587 \ud83d\ude00", reader.readString());
+    }
+
+    @Test
+    public void repeatedStringsAreSentByIndex() throws IOException {
+        writer.begin(Protocol.INSTANCE);
+        writer.writeString("build_Birds_1234");
+        writer.writeString("http://example.org/submission");
+        writer.end();
+        int first = out.size();
+        writer.begin(Protocol.INSTANCE);
+        writer.writeString("build_Birds_1234");
+        writer.writeString("http://example.org/submission");
+        writer.end();
+
+        // a type byte, a length byte and a one byte index for each string
+        assertEquals(4, out.size() - first);
+        FrameReader reader = reader();
+        reader.expect(Protocol.INSTANCE);
+        String formId = reader.readString();
+        String uri = reader.readString();
+        reader.expect(Protocol.INSTANCE);
+        assertSame(formId, reader.readString());
+        assertSame(uri, reader.readString());
+    }
+
+    @Test
+    public void longStringsStayLiteral() throws IOException {
+        StringBuilder builder = new StringBuilder();
+        while (builder.length() <= Protocol.MAX_TABLE_STRING) {
+            builder.append('x');
+        }
+        String value = builder.toString();
+        writer.begin(Protocol.FORM);
+        writer.writeString(value);
+        writer.end();
+        int first = out.size();
+        writer.begin(Protocol.FORM);
+        writer.writeString(value);
+        writer.end();
+
+        assertEquals(first, out.size() - first);
+        FrameReader reader = reader();
+        reader.expect(Protocol.FORM);
+        assertEquals(value, reader.readString());
+        reader.expect(Protocol.FORM);
+        assertEquals(value, reader.readString());
+    }
+
+    @Test
+    public void stringTableStopsGrowingAtItsLimit() throws IOException {
+        int count = Protocol.MAX_TABLE_SIZE + 10;
+        writer.begin(Protocol.OFFER);
+        for (int i = 0; i < count; i++) {
+            writer.writeString("s" + i);
+        }
+        writer.end();
+        // the first strings are sent by index, those past the limit as literals again
+        writer.begin(Protocol.OFFER);
+        for (int i = 0; i < count; i++) {
+            writer.writeString("s" + i);
+        }
+        writer.end();
+
+        FrameReader reader = reader();
+        for (int frame = 0; frame < 2; frame++) {
+            reader.expect(Protocol.OFFER);
+            for (int i = 0; i < count; i++) {
+                assertEquals("s" + i, reader.readString());
+            }
+        }
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void frameLargerThanTheLimitIsRejected() throws IOException {
+        byte[] header = header(Protocol.CHUNK_RAW, Protocol.MAX_FRAME_SIZE + 1L);
+        new FrameReader(new ByteArrayInputStream(header)).next();
+    }
+
+    @Test(expected = EOFException.class)
+    public void truncatedFrameIsRejected() throws IOException {
+        writer.begin(Protocol.UNIT);
+        writer.writeVarInt(1000);
+        writer.writeString("formId");
+        writer.end();
+        byte[] bytes = out.toByteArray();
+        byte[] truncated = new byte[bytes.length - 2];
+        System.arraycopy(bytes, 0, truncated, 0, truncated.length);
+        new FrameReader(new ByteArrayInputStream(truncated)).next();
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void unexpectedFrameIsRejected() throws IOException {
+        writer.begin(Protocol.END);
+        writer.end();
+        reader().expect(Protocol.FILE);
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void readingPastTheFrameIsRejected() throws IOException {
+        writer.begin(Protocol.UNIT);
+        writer.writeBoolean(true);
+        writer.end();
+        FrameReader reader = reader();
+        reader.next();
+        reader.readBoolean();
+        reader.readVarLong();
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void unknownStringIndexIsRejected() throws IOException {
+        writer.begin(Protocol.OFFER);
+        writer.writeVarLong((5L << 1) | 1);
+        writer.end();
+        FrameReader reader = reader();
+        reader.next();
+        reader.readString();
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void stringPastTheFrameIsRejected() throws IOException {
+        writer.begin(Protocol.OFFER);
+        writer.writeVarLong((100L + 1) << 1);
+        writer.end();
+        FrameReader reader = reader();
+        reader.next();
+        reader.readString();
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void bytesPastTheFrameAreRejected() throws IOException {
+        writer.begin(Protocol.BATCH);
+        writer.writeVarInt(10);
+        writer.end();
+        FrameReader reader = reader();
+        reader.next();
+        reader.readBytes(reader.readVarInt());
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void varIntOverflowIsRejected() throws IOException {
+        writer.begin(Protocol.PLAN);
+        writer.writeVarLong(Integer.MAX_VALUE + 1L);
+        writer.end();
+        FrameReader reader = reader();
+        reader.next();
+        reader.readVarInt();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeVarIntIsNotWritten() {
+        writer.begin(Protocol.PLAN);
+        writer.writeVarInt(-1);
+    }
+
+    private FrameReader reader() {
+        return new FrameReader(new ByteArrayInputStream(out.toByteArray()));
+    }
+
+    private static byte[] header(int type, long length) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        bytes.write(type);
+        while ((length & ~0x7FL) != 0) {
+            bytes.write((int) ((length & 0x7F) | 0x80));
+            length >>>= 7;
+        }
+        bytes.write((int) length);
+        return bytes.toByteArray();
+    }
+}